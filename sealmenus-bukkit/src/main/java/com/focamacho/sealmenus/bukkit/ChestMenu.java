@@ -1,9 +1,9 @@
 package com.focamacho.sealmenus.bukkit;
 
-import com.focamacho.sealmenus.bukkit.item.ClickableItem;
+import com.focamacho.sealmenus.bukkit.item.AsyncClickAction;
+import com.focamacho.sealmenus.bukkit.item.ClickAction;
+import com.focamacho.sealmenus.bukkit.item.ClickSnapshot;
 import com.focamacho.sealmenus.bukkit.item.MenuItem;
-import com.google.common.collect.Sets;
-import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import lombok.Setter;
@@ -12,25 +12,56 @@ import org.bukkit.Bukkit;
 import org.bukkit.Material;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.inventory.ClickType;
 import org.bukkit.event.inventory.InventoryClickEvent;
 import org.bukkit.event.inventory.InventoryCloseEvent;
+import org.bukkit.event.inventory.InventoryDragEvent;
 import org.bukkit.event.inventory.InventoryOpenEvent;
 import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.InventoryHolder;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.plugin.java.JavaPlugin;
-import org.bukkit.scheduler.BukkitRunnable;
-import org.bukkit.scheduler.BukkitTask;
 
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.logging.Level;
 
 @SuppressWarnings({"unused", "UnusedReturnValue"})
 @Accessors(chain = true)
-public class ChestMenu {
+public class ChestMenu implements InventoryHolder {
 
-    private static final MenuItem dummyItem = ClickableItem.create(new ItemStack(Material.AIR));
+    private static final int CLICK_ACTION_BIT = 1 << ClickAction.values().length;
+
+    // Action of the kinds of clicks without one, never counted in the mask
+    private static final Consumer<?> NO_ACTION = (click) -> {};
+
+    // Kind of click of each ClickType, or null for the ones without actions
+    private static final ClickAction[] CLICK_ACTIONS = new ClickAction[ClickType.values().length];
+
+    static {
+        CLICK_ACTIONS[ClickType.LEFT.ordinal()] = ClickAction.PRIMARY;
+        CLICK_ACTIONS[ClickType.MIDDLE.ordinal()] = ClickAction.MIDDLE;
+        CLICK_ACTIONS[ClickType.RIGHT.ordinal()] = ClickAction.SECONDARY;
+        CLICK_ACTIONS[ClickType.SHIFT_LEFT.ordinal()] = ClickAction.SHIFT_PRIMARY;
+        CLICK_ACTIONS[ClickType.DOUBLE_CLICK.ordinal()] = ClickAction.DOUBLE;
+        CLICK_ACTIONS[ClickType.DROP.ordinal()] = ClickAction.DROP;
+        CLICK_ACTIONS[ClickType.SHIFT_RIGHT.ordinal()] = ClickAction.SHIFT_SECONDARY;
+        CLICK_ACTIONS[ClickType.CONTROL_DROP.ordinal()] = ClickAction.DROP_ALL;
+        CLICK_ACTIONS[ClickType.NUMBER_KEY.ordinal()] = ClickAction.NUMBER;
+    }
+
+    // Depth of the inventory events being handled, of any
+    // inventory, menus are only opened right away outside of them
+    private static int handlingEvents = 0;
 
     //Base properties
     @Getter private final String title;
@@ -40,24 +71,65 @@ public class ChestMenu {
     //Global actions
     @Getter @Setter private Consumer<InventoryOpenEvent> onOpen = (interact) -> {};
     @Getter @Setter private Consumer<InventoryCloseEvent> onClose = (interact) -> {};
-    @Getter @Setter private Consumer<InventoryClickEvent> onClick = (click) -> {};
-    @Getter @Setter private Consumer<InventoryClickEvent> onPrimary = (click) -> {};
-    @Getter @Setter private Consumer<InventoryClickEvent> onMiddle = (click) -> {};
-    @Getter @Setter private Consumer<InventoryClickEvent> onSecondary = (click) -> {};
-    @Getter @Setter private Consumer<InventoryClickEvent> onShiftPrimary = (click) -> {};
-    @Getter @Setter private Consumer<InventoryClickEvent> onDouble = (click) -> {};
-    @Getter @Setter private Consumer<InventoryClickEvent> onDrop = (click) -> {};
-    @Getter @Setter private Consumer<InventoryClickEvent> onShiftSecondary = (click) -> {};
-    @Getter @Setter private Consumer<InventoryClickEvent> onDropAll = (click) -> {};
-    @Getter @Setter private Consumer<InventoryClickEvent> onNumber = (click) -> {};
-
-    //Items
-    protected Map<Integer, MenuItem> items = new ConcurrentHashMap<>();
+    // Mask of the kinds of clicks with an action
+    private int actionMask = 0;
+    @Getter private Consumer<InventoryClickEvent> onClick = noAction();
+    @Getter private Consumer<InventoryClickEvent> onPrimary = noAction();
+    @Getter private Consumer<InventoryClickEvent> onMiddle = noAction();
+    @Getter private Consumer<InventoryClickEvent> onSecondary = noAction();
+    @Getter private Consumer<InventoryClickEvent> onShiftPrimary = noAction();
+    @Getter private Consumer<InventoryClickEvent> onDouble = noAction();
+    @Getter private Consumer<InventoryClickEvent> onDrop = noAction();
+    @Getter private Consumer<InventoryClickEvent> onShiftSecondary = noAction();
+    @Getter private Consumer<InventoryClickEvent> onDropAll = noAction();
+    @Getter private Consumer<InventoryClickEvent> onNumber = noAction();
+
+    //Time from the call to open until the menu is shown, in nanoseconds
+    @Getter private LongConsumer onOpenLatency = (nanos) -> {};
+
+    //Clicks allowed for each player
+    private final ClickLimiter clickLimiter = new ClickLimiter();
+
+    //Actions performed outside of the main thread, indexed by ClickAction
+    private final AsyncClickAction[] asyncActions = new AsyncClickAction[ClickAction.values().length];
+    private int asyncActionMask = 0;
+    protected Executor clickExecutor = null;
+
+    //Items, indexed by slot
+    protected AtomicReferenceArray<MenuItem> items;
+    protected long tickingSlots = 0;
+    // Items may change from any thread, the menu is
+    // only updated from the main thread
+    protected final Consumer<MenuItem> itemWatcher = item -> {
+        if(Bukkit.isPrimaryThread()) onItemChange(item);
+        else enqueueEdit(() -> onItemChange(item));
+    };
+    // Items are only watched while the menu has viewers, so
+    // items shared with other menus don't keep this one in memory
+    private boolean watchingItems = false;
 
     //Bukkit Inventory
     @Getter protected Inventory inventory;
-    protected final Set<Integer> slotsRequiringUpdate = Sets.newHashSet();
-    @Getter(AccessLevel.PROTECTED) @Setter(AccessLevel.PROTECTED) private BukkitTask updateItemsTask = null;
+    private SlotWriter slotWriter;
+    // Item and version last written to each slot, so
+    // slots that didn't change are not written again
+    private final MenuItem[] renderedItems;
+    private final int[] renderedVersions;
+    // Bitmask of the slots waiting for an update, one bit per slot
+    protected long slotsRequiringUpdate = 0;
+    // Bitmask of the slots written even if their item did not change
+    protected long slotsForcingUpdate = 0;
+    protected boolean requiresFullUpdate = false;
+    // Depth of the edits being applied, the slots are
+    // only updated once the outermost edit ends
+    private int editDepth = 0;
+
+    //Contents being loaded for the players opening this menu
+    private final Map<UUID, CompletableFuture<? extends Consumer<ChestMenu>>> pendingContents = new ConcurrentHashMap<>();
+
+    //Edits queued from any thread, applied in the main thread
+    private final Queue<Runnable> queuedEdits = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean applyScheduled = new AtomicBoolean(false);
 
     protected ChestMenu(String title, int rows, JavaPlugin plugin) {
         if(rows <= 0 || rows > 6) throw new IllegalArgumentException("The number of rows for a menu must be >= 1 && <= 6.");
@@ -65,6 +137,9 @@ public class ChestMenu {
         this.title = Objects.requireNonNull(title);
         this.rows = rows;
         this.plugin = Objects.requireNonNull(plugin);
+        this.items = new AtomicReferenceArray<>(rows * 9);
+        this.renderedItems = new MenuItem[rows * 9];
+        this.renderedVersions = new int[rows * 9];
     }
 
     /**
@@ -76,7 +151,13 @@ public class ChestMenu {
     public ChestMenu addItem(MenuItem item, int slot) {
         if(slot < 0 || slot >= this.rows * 9) throw new IllegalArgumentException("The slot can't be less than zero or greater than the inventory size.");
 
-        items.put(slot, item);
+        MenuItem oldItem = items.getAndSet(slot, item);
+        if(item.isTicking()) tickingSlots |= 1L << slot;
+        else tickingSlots &= ~(1L << slot);
+
+        holdItem(item);
+        if(oldItem != null && oldItem != item) releaseItem(oldItem);
+
         requireUpdate(slot);
         return this;
     }
@@ -87,11 +168,27 @@ public class ChestMenu {
      * @return this menu.
      */
     public ChestMenu removeItem(int slot) {
-        this.items.remove(slot);
+        if(slot < 0 || slot >= this.rows * 9) throw new IllegalArgumentException("The slot can't be less than zero or greater than the inventory size.");
+
+        MenuItem oldItem = this.items.getAndSet(slot, null);
+        this.tickingSlots &= ~(1L << slot);
+        if(oldItem != null) releaseItem(oldItem);
+
         requireUpdate(slot);
         return this;
     }
 
+    /**
+     * Returns the item in the
+     * provided slot.
+     * @param slot the item slot.
+     * @return the item in the
+     * slot or null if there is no item.
+     */
+    public MenuItem getItem(int slot) {
+        return slot >= 0 && slot < items.length() ? items.get(slot) : null;
+    }
+
     /**
      * Returns the item in the
      * provided slot.
@@ -100,7 +197,7 @@ public class ChestMenu {
      * slot or null if there is no item.
      */
     public MenuItem getItem(Integer slot) {
-        return items.get(slot);
+        return slot == null ? null : getItem(slot.intValue());
     }
 
     /**
@@ -108,7 +205,14 @@ public class ChestMenu {
      * @return the items of this menu.
      */
     public Map<Integer, MenuItem> getItems() {
-        return Collections.unmodifiableMap(this.items);
+        Map<Integer, MenuItem> items = new HashMap<>();
+
+        for(int slot = 0; slot < this.items.length(); slot++) {
+            MenuItem item = this.items.get(slot);
+            if(item != null) items.put(slot, item);
+        }
+
+        return Collections.unmodifiableMap(items);
     }
 
     /**
@@ -145,6 +249,17 @@ public class ChestMenu {
         return Collections.unmodifiableMap(items);
     }
 
+    /**
+     * Check if a slot contains
+     * a menu item.
+     *
+     * @param slot the slot to check.
+     * @return if contains or not an item.
+     */
+    public boolean containsItem(int slot) {
+        return slot >= 0 && slot < items.length() && items.get(slot) != null;
+    }
+
     /**
      * Check if a slot contains
      * a menu item.
@@ -153,7 +268,7 @@ public class ChestMenu {
      * @return if contains or not an item.
      */
     public boolean containsItem(Integer slot) {
-        return slot != null && items.containsKey(slot);
+        return slot != null && containsItem(slot.intValue());
     }
 
     /**
@@ -163,9 +278,15 @@ public class ChestMenu {
      * @return this menu.
      */
     public ChestMenu setItems(Map<Integer, MenuItem> items) {
-        this.items.clear();
-        items.forEach((slot, item) -> addItem(item, slot));
-        requireUpdate(null);
+        beginEdit();
+        try {
+            removeAllItems();
+
+            items.forEach((slot, item) -> addItem(item, slot));
+            requireUpdate(null, false);
+        } finally {
+            endEdit();
+        }
         return this;
     }
 
@@ -174,37 +295,54 @@ public class ChestMenu {
      * @return this menu.
      */
     public ChestMenu clearItems() {
-        items.clear();
-        requireUpdate(null);
+        removeAllItems();
+
+        requireUpdate(null, false);
         return this;
     }
 
     /**
      * Updates the inventory with the current
-     * items of this menu.
+     * items of this menu. Every slot is written
+     * again, even if its item did not change.
      */
     public void update() {
+        updateSlots(true);
+    }
+
+    private void updateSlots(boolean force) {
         if(this.inventory == null) {
-            this.inventory = Bukkit.createInventory(null, this.rows * 9, this.title);
+            // The menu is the holder of its inventory, so the listener can
+            // find the menu of an inventory with a single check
+            this.inventory = Bukkit.createInventory(this, this.rows * 9, this.title);
+            this.slotWriter = new SlotWriter(this.plugin, this.inventory);
         }
 
         for (int i = 0; i < this.inventory.getSize(); i++) {
-            updateSlotStack(i);
+            updateSlotStack(i, force || (slotsForcingUpdate & 1L << i) != 0);
         }
 
-        slotsRequiringUpdate.clear();
+        slotsRequiringUpdate = 0;
+        slotsForcingUpdate = 0;
+        requiresFullUpdate = false;
     }
 
     /**
      * Updates a specific slot of
-     * this menu.
+     * this menu. The slot is written again,
+     * even if its item did not change.
      *
      * @param slot the slot to update.
      */
     public void update(int slot) {
-        if(this.inventory == null) update();
-        updateSlotStack(slot);
-        slotsRequiringUpdate.remove(slot);
+        updateSlot(slot, true);
+    }
+
+    private void updateSlot(int slot, boolean force) {
+        if(this.inventory == null) updateSlots(false);
+        updateSlotStack(slot, force || (slotsForcingUpdate & 1L << slot) != 0);
+        slotsRequiringUpdate &= ~(1L << slot);
+        slotsForcingUpdate &= ~(1L << slot);
     }
 
     /**
@@ -212,40 +350,183 @@ public class ChestMenu {
      * Slots are only updated if there is
      * a player using the inventory, otherwise
      * it will only be updated the next time a player
-     * opens it.
+     * opens it. The slot is written again, even
+     * if its item did not change.
      *
      * @param slot the slot to mark. Can be null
      *             to require an update for the
      *             entire inventory.
      */
     public void requireUpdate(Integer slot) {
+        requireUpdate(slot, true);
+    }
+
+    /**
+     * Mark a slot as required update. Unless forced,
+     * the slot is only written if its item, or the
+     * version of the item, changed since it was
+     * last written.
+     *
+     * @param slot the slot to mark, or null
+     *             for the entire inventory.
+     * @param force if the slot should be written
+     *              even if its item did not change.
+     */
+    protected void requireUpdate(Integer slot, boolean force) {
         if(this.inventory != null) {
-            if(hasViewers())
-                if(slot == null) update();
-                else update(slot);
-            else this.slotsRequiringUpdate.add(slot);
+            if(hasViewers() && !isEditing())
+                if(slot == null) updateSlots(force);
+                else updateSlot(slot, force);
+            else {
+                if(slot == null) this.requiresFullUpdate = true;
+                else this.slotsRequiringUpdate |= 1L << slot;
+                if(force) this.slotsForcingUpdate |= slot == null ? -1L : 1L << slot;
+            }
         }
     }
 
     /**
      * Open this menu for a player.
      *
+     * The menu is opened right away when called from
+     * the main thread. When called from other threads,
+     * or from inside an inventory event, where opening
+     * an inventory is not safe, it is opened in the
+     * next tick instead.
+     *
      * @param player the desired player.
      */
     public void open(Player player) {
         if(this.inventory == null) update();
-        Bukkit.getScheduler().runTask(this.plugin, () -> {
-            if(slotsRequiringUpdate.size() > 0) {
-                if (slotsRequiringUpdate.contains(null)) update();
-                else new HashSet<>(slotsRequiringUpdate).forEach(this::update);
-            }
 
-            Listener listener = SealMenus.registeredListeners.get(this.plugin);
-            if(listener != null) listener.chestMenus.add(this);
+        long openTime = System.nanoTime();
+        if(Bukkit.isPrimaryThread() && handlingEvents == 0) show(player, openTime);
+        else Bukkit.getScheduler().runTask(this.plugin, () -> show(player, openTime));
+    }
+
+    private void show(Player player, long openTime) {
+        watchItems();
+        updateRequiredSlots();
+
+        // Show the menu already filled
+        slotWriter.flush();
+
+        player.closeInventory();
+        if(player.openInventory(this.inventory) != null) getOnOpenLatency().accept(System.nanoTime() - openTime);
+        else unwatchItems();
+    }
+
+    /**
+     * Open this menu for a player while its contents
+     * are loaded. The menu is opened right away with the
+     * items it already has, and the result of the future
+     * is applied to it in the main thread once completed.
+     *
+     * If the player closes the menu, or opens another
+     * one, before the contents are loaded, the future
+     * is cancelled and its result is not applied.
+     *
+     * @param player the desired player.
+     * @param contents the future that loads the contents,
+     *                 returning the action that adds them
+     *                 to the menu.
+     */
+    public void openAsync(Player player, CompletableFuture<? extends Consumer<ChestMenu>> contents) {
+        UUID viewer = player.getUniqueId();
+        CompletableFuture<? extends Consumer<ChestMenu>> previous = pendingContents.put(viewer, contents);
+        if(previous != null) previous.cancel(false);
+
+        open(player);
+        contents.whenComplete((apply, error) -> Bukkit.getScheduler().runTask(this.plugin, () -> {
+            if(pendingContents.remove(viewer, contents) && error == null && apply != null) apply.accept(this);
+        }));
+    }
+
+    /**
+     * Apply multiple changes to this menu at once.
+     * The slots changed by the edit are only updated
+     * after it ends, for this menu and all of its copies
+     * being viewed.
+     *
+     * This method must be called from the main thread,
+     * use ChestMenu#queueEdit from other threads.
+     *
+     * @param edit the edit to apply.
+     * @return this menu.
+     */
+    public ChestMenu edit(Consumer<ChestMenu> edit) {
+        beginEdit();
+        try {
+            edit.accept(this);
+        } finally {
+            endEdit();
+        }
+        return this;
+    }
+
+    protected void beginEdit() {
+        editDepth++;
+    }
+
+    protected void endEdit() {
+        if(--editDepth == 0) handleEditEnd();
+    }
+
+    protected boolean isEditing() {
+        return editDepth > 0;
+    }
 
-            player.closeInventory();
-            player.openInventory(this.inventory);
-        });
+    /**
+     * Called when the outermost edit of this
+     * menu ends, updating the slots changed by it.
+     */
+    protected void handleEditEnd() {
+        if(this.inventory != null && hasViewers()) updateRequiredSlots();
+    }
+
+    /**
+     * Updates all slots marked as required update.
+     */
+    protected void updateRequiredSlots() {
+        if(requiresFullUpdate) updateSlots(false);
+        else for(long slots = slotsRequiringUpdate; slots != 0; slots &= slots - 1) {
+            updateSlot(Long.numberOfTrailingZeros(slots), false);
+        }
+    }
+
+    /**
+     * Queue an edit to this menu.
+     *
+     * Unlike the other methods of this menu, this
+     * method is safe to call from any thread. The queued
+     * edits are applied together in the main thread, in
+     * the order they were queued.
+     *
+     * @param edit the edit to apply.
+     * @return this menu.
+     */
+    public ChestMenu queueEdit(Consumer<ChestMenu> edit) {
+        enqueueEdit(() -> edit.accept(this));
+        return this;
+    }
+
+    protected void enqueueEdit(Runnable edit) {
+        queuedEdits.offer(edit);
+        if(applyScheduled.compareAndSet(false, true)) Bukkit.getScheduler().runTask(this.plugin, this::applyQueuedEdits);
+    }
+
+    private void applyQueuedEdits() {
+        applyScheduled.set(false);
+        beginEdit();
+        try {
+            Runnable edit;
+            while ((edit = queuedEdits.poll()) != null) edit.run();
+        } finally {
+            endEdit();
+
+            // An edit failed, the remaining ones are applied in the next tick
+            if(!queuedEdits.isEmpty() && applyScheduled.compareAndSet(false, true)) Bukkit.getScheduler().runTask(this.plugin, this::applyQueuedEdits);
+        }
     }
 
     /**
@@ -258,15 +539,14 @@ public class ChestMenu {
         return this.inventory.getViewers().size() > 0;
     }
 
-    private void updateSlotStack(int slot) {
-        ItemStack inventoryStack = this.inventory.getItem(slot);
-        if(inventoryStack == null) inventoryStack = new ItemStack(Material.AIR);
+    private void updateSlotStack(int slot, boolean force) {
+        MenuItem item = getItem(slot);
+        int version = item == null ? 0 : item.getVersion();
+        if(!force && renderedItems[slot] == item && renderedVersions[slot] == version) return;
 
-        if(containsItem(slot)) {
-            ItemStack stack = getItem(slot).getItem();
-            if (inventoryStack != stack)
-                Bukkit.getScheduler().runTask(this.plugin, () -> this.inventory.setItem(slot, stack));
-        } else if(inventoryStack.getType() != Material.AIR) Bukkit.getScheduler().runTask(this.plugin, () -> this.inventory.clear(slot));
+        renderedItems[slot] = item;
+        renderedVersions[slot] = version;
+        slotWriter.write(slot, item == null ? null : item.getItem());
     }
 
     /**
@@ -278,6 +558,7 @@ public class ChestMenu {
 
         copy.setOnOpen(this.getOnOpen());
         copy.setOnClose(this.getOnClose());
+        copy.setOnOpenLatency(this.getOnOpenLatency());
 
         copy.setOnClick(this.getOnClick());
         copy.setOnPrimary(this.getOnPrimary());
@@ -289,130 +570,578 @@ public class ChestMenu {
         copy.setOnShiftPrimary(this.getOnShiftPrimary());
         copy.setOnShiftSecondary(this.getOnShiftSecondary());
         copy.setOnDouble(this.getOnDouble());
+        copy.getClickLimiter().copyFrom(getClickLimiter());
+        copy.setClickExecutor(this.clickExecutor);
+        for (ClickAction action : ClickAction.values()) copy.setAsyncAction(action, getAsyncAction(action));
 
         getItems().forEach((slot, item) -> copy.addItem(item.copy(), slot));
         return copy;
     }
 
-    protected void handlesUpdateItemsTask() {
-        if(getUpdateItemsTask() == null && hasViewers())
-            setUpdateItemsTask(new BukkitRunnable() {
-                @Override
-                public void run() {
-                    handleUpdateItems();
+    public ChestMenu setOnClick(Consumer<InventoryClickEvent> onClick) {
+        this.onClick = onClick == null ? noAction() : onClick;
+        updateActionMask(CLICK_ACTION_BIT, onClick != null && onClick != NO_ACTION);
+        return this;
+    }
+
+    public ChestMenu setOnPrimary(Consumer<InventoryClickEvent> onPrimary) {
+        this.onPrimary = onPrimary == null ? noAction() : onPrimary;
+        updateActionMask(ClickAction.PRIMARY.getBit(), onPrimary != null && onPrimary != NO_ACTION);
+        return this;
+    }
+
+    public ChestMenu setOnMiddle(Consumer<InventoryClickEvent> onMiddle) {
+        this.onMiddle = onMiddle == null ? noAction() : onMiddle;
+        updateActionMask(ClickAction.MIDDLE.getBit(), onMiddle != null && onMiddle != NO_ACTION);
+        return this;
+    }
+
+    public ChestMenu setOnSecondary(Consumer<InventoryClickEvent> onSecondary) {
+        this.onSecondary = onSecondary == null ? noAction() : onSecondary;
+        updateActionMask(ClickAction.SECONDARY.getBit(), onSecondary != null && onSecondary != NO_ACTION);
+        return this;
+    }
+
+    public ChestMenu setOnShiftPrimary(Consumer<InventoryClickEvent> onShiftPrimary) {
+        this.onShiftPrimary = onShiftPrimary == null ? noAction() : onShiftPrimary;
+        updateActionMask(ClickAction.SHIFT_PRIMARY.getBit(), onShiftPrimary != null && onShiftPrimary != NO_ACTION);
+        return this;
+    }
+
+    public ChestMenu setOnDouble(Consumer<InventoryClickEvent> onDouble) {
+        this.onDouble = onDouble == null ? noAction() : onDouble;
+        updateActionMask(ClickAction.DOUBLE.getBit(), onDouble != null && onDouble != NO_ACTION);
+        return this;
+    }
 
-                    if(!hasViewers()) {
-                        this.cancel();
-                        updateItemsTask = null;
-                    }
+    public ChestMenu setOnDrop(Consumer<InventoryClickEvent> onDrop) {
+        this.onDrop = onDrop == null ? noAction() : onDrop;
+        updateActionMask(ClickAction.DROP.getBit(), onDrop != null && onDrop != NO_ACTION);
+        return this;
+    }
+
+    public ChestMenu setOnShiftSecondary(Consumer<InventoryClickEvent> onShiftSecondary) {
+        this.onShiftSecondary = onShiftSecondary == null ? noAction() : onShiftSecondary;
+        updateActionMask(ClickAction.SHIFT_SECONDARY.getBit(), onShiftSecondary != null && onShiftSecondary != NO_ACTION);
+        return this;
+    }
+
+    public ChestMenu setOnDropAll(Consumer<InventoryClickEvent> onDropAll) {
+        this.onDropAll = onDropAll == null ? noAction() : onDropAll;
+        updateActionMask(ClickAction.DROP_ALL.getBit(), onDropAll != null && onDropAll != NO_ACTION);
+        return this;
+    }
+
+    public ChestMenu setOnNumber(Consumer<InventoryClickEvent> onNumber) {
+        this.onNumber = onNumber == null ? noAction() : onNumber;
+        updateActionMask(ClickAction.NUMBER.getBit(), onNumber != null && onNumber != NO_ACTION);
+        return this;
+    }
+
+    /**
+     * Set an action to be performed every time this
+     * menu is shown to a player, receiving the time
+     * from the call to open until the menu was shown,
+     * in nanoseconds.
+     *
+     * @param onOpenLatency the action to perform.
+     * @return this menu.
+     */
+    public ChestMenu setOnOpenLatency(LongConsumer onOpenLatency) {
+        this.onOpenLatency = onOpenLatency == null ? (nanos) -> {} : onOpenLatency;
+        return this;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Consumer<T> noAction() {
+        return (Consumer<T>) NO_ACTION;
+    }
+
+    private void updateActionMask(int bit, boolean set) {
+        this.actionMask = set ? this.actionMask | bit : this.actionMask & ~bit;
+    }
+
+    /**
+     * Performs the actions of this menu and of
+     * the item in the slot for a click. Only the
+     * actions that were set are performed, and
+     * nothing is performed for clicks over the
+     * click limit of the player.
+     *
+     * @param ce the click event.
+     * @param slot the clicked slot.
+     */
+    protected void handleClick(InventoryClickEvent ce, int slot) {
+        UUID viewer = ce.getWhoClicked().getUniqueId();
+        if(!getClickLimiter().tryClick(viewer, isDebounced(slot))) return;
+
+        int menuActions = getActionMask();
+        if((menuActions & CLICK_ACTION_BIT) != 0) getOnClick().accept(ce);
+
+        ClickAction action = CLICK_ACTIONS[ce.getClick().ordinal()];
+        if(action == null) return;
+
+        int bit = action.getBit();
+        if((menuActions & bit) != 0) getAction(action).accept(ce);
+
+        MenuItem item = getItem(slot);
+        if(item != null && (item.getActionMask() & bit) != 0) item.<InventoryClickEvent>getAction(action).accept(ce);
+
+        runAsyncActions(viewer, slot, action, item);
+    }
+
+    private void runAsyncActions(UUID viewer, int slot, ClickAction action, MenuItem item) {
+        int bit = action.getBit();
+        AsyncClickAction menuAction = (getAsyncActionMask() & bit) != 0 ? getAsyncAction(action) : null;
+        AsyncClickAction itemAction = item != null && (item.getAsyncActionMask() & bit) != 0 ? item.getAsyncAction(action) : null;
+        if(menuAction == null && itemAction == null) return;
+
+        ClickLimiter limiter = getClickLimiter();
+        Object token = limiter.tryStartAsync(viewer);
+        if(token == null) return;
+
+        ClickSnapshot click = new ClickSnapshot(viewer, slot, action);
+        ChestMenu menu = getRootMenu();
+        Executor executor = getClickExecutor();
+        CompletableFuture.allOf(runAsyncAction(menuAction, click, menu, executor), runAsyncAction(itemAction, click, menu, executor))
+                .whenComplete((done, error) -> menu.enqueueEdit(() -> limiter.finishAsync(viewer, token)));
+    }
+
+    private CompletableFuture<Void> runAsyncAction(AsyncClickAction action, ClickSnapshot click, ChestMenu menu, Executor executor) {
+        if(action == null) return CompletableFuture.completedFuture(null);
+
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    CompletableFuture<? extends Consumer<ChestMenu>> result = action.apply(click);
+                    if(result == null) done.complete(null);
+                    else result.whenComplete((edit, error) -> {
+                        if(error != null) logAsyncFailure(error);
+                        else if(edit != null) menu.enqueueEdit(() -> edit.accept(menu));
+                        done.complete(null);
+                    });
+                } catch (Throwable error) {
+                    logAsyncFailure(error);
+                    done.completeExceptionally(error);
                 }
-            }.runTaskTimer(this.plugin, 1, 1));
+            });
+        } catch (RuntimeException error) {
+            logAsyncFailure(error);
+            done.completeExceptionally(error);
+        }
+        return done;
+    }
+
+    private void logAsyncFailure(Throwable error) {
+        if(!(error instanceof CancellationException)) this.plugin.getLogger().log(Level.SEVERE, "An asynchronous click action of the menu " + this.title + " failed.", error);
+    }
+
+    /**
+     * Limits how fast each player can click this
+     * menu. Clicks over the limit are cancelled
+     * without performing any action.
+     *
+     * A player can click up to the given amount
+     * of times in a row, and then once for each
+     * millis / clicks milliseconds. Use a limit
+     * of 1 click to only set a minimum interval
+     * between clicks.
+     *
+     * @param clicks the amount of clicks allowed
+     *               in the period, or 0 to
+     *               remove the limit.
+     * @param millis the period, in milliseconds.
+     * @return this menu.
+     */
+    public ChestMenu setClickLimit(int clicks, long millis) {
+        getClickLimiter().setLimit(clicks, millis);
+        return this;
+    }
+
+    /**
+     * Returns the amount of clicks dropped
+     * by the click limit of this menu.
+     *
+     * @return the amount of dropped clicks.
+     */
+    public long getDroppedClicks() {
+        return getClickLimiter().getDroppedClicks();
+    }
+
+    ClickLimiter getClickLimiter() {
+        return clickLimiter;
+    }
+
+    /**
+     * Set an action to be performed outside of the
+     * main thread for a kind of click on this menu.
+     *
+     * The action receives a snapshot of the click, and
+     * the edit it returns is applied to this menu in
+     * the main thread, together with the other edits
+     * completed in the same tick. Until it completes,
+     * or the player closes the menu, further clicks of
+     * the same player with asynchronous actions
+     * are dropped.
+     *
+     * @param action the kind of click.
+     * @param asyncAction the action to perform, or
+     *                    null to remove it.
+     * @return this menu.
+     */
+    public ChestMenu setAsyncAction(ClickAction action, AsyncClickAction asyncAction) {
+        asyncActions[action.ordinal()] = asyncAction;
+        asyncActionMask = asyncAction == null ? asyncActionMask & ~action.getBit() : asyncActionMask | action.getBit();
+        return this;
+    }
+
+    /**
+     * Returns the action of this menu performed
+     * outside of the main thread for a kind of click.
+     *
+     * @param action the kind of click.
+     * @return the action, or null if it was not set.
+     */
+    public AsyncClickAction getAsyncAction(ClickAction action) {
+        return asyncActions[action.ordinal()];
+    }
+
+    protected int getAsyncActionMask() {
+        return asyncActionMask;
+    }
+
+    /**
+     * Set the executor used to perform the
+     * asynchronous click actions of this menu
+     * and of its items.
+     *
+     * @param clickExecutor the executor, or null
+     *                      to use the asynchronous scheduler of Bukkit.
+     * @return this menu.
+     */
+    public ChestMenu setClickExecutor(Executor clickExecutor) {
+        this.clickExecutor = clickExecutor;
+        return this;
+    }
+
+    /**
+     * Returns the executor used to perform
+     * the asynchronous click actions.
+     *
+     * @return the executor.
+     */
+    public Executor getClickExecutor() {
+        return clickExecutor != null ? clickExecutor : task -> Bukkit.getScheduler().runTaskAsynchronously(this.plugin, task);
+    }
+
+    /**
+     * Returns the menu the actions of this
+     * menu belong to, where the edits of the
+     * asynchronous actions are applied.
+     *
+     * @return the menu.
+     */
+    protected ChestMenu getRootMenu() {
+        return this;
+    }
+
+    /**
+     * Returns if the clicks in a slot are
+     * debounced by the click limit.
+     *
+     * @param slot the clicked slot.
+     * @return true if the clicks are debounced.
+     */
+    protected boolean isDebounced(int slot) {
+        return false;
+    }
+
+    /**
+     * Returns the mask of the kinds of
+     * clicks this menu has actions for.
+     *
+     * @return the mask, with the bit of each
+     * ClickAction set.
+     */
+    protected int getActionMask() {
+        return actionMask;
+    }
+
+    private Consumer<InventoryClickEvent> getAction(ClickAction action) {
+        switch (action) {
+            case PRIMARY: return getOnPrimary();
+            case MIDDLE: return getOnMiddle();
+            case SECONDARY: return getOnSecondary();
+            case SHIFT_PRIMARY: return getOnShiftPrimary();
+            case DOUBLE: return getOnDouble();
+            case DROP: return getOnDrop();
+            case SHIFT_SECONDARY: return getOnShiftSecondary();
+            case DROP_ALL: return getOnDropAll();
+            case NUMBER: return getOnNumber();
+            default: throw new IllegalArgumentException("Unknown click action: " + action);
+        }
+    }
+
+    protected void startTicking() {
+        MenuTicker ticker = SealMenus.registeredTickers.get(this.plugin);
+        if(ticker != null) ticker.add(this);
+    }
+
+    protected void stopTicking() {
+        MenuTicker ticker = SealMenus.registeredTickers.get(this.plugin);
+        if(ticker != null && !hasViewers()) ticker.remove(this);
+    }
+
+    /**
+     * Called after a player closes this menu.
+     *
+     * @param viewer the unique id of the player.
+     */
+    protected void handleClose(UUID viewer) {
+        if(!isViewing(viewer)) {
+            CompletableFuture<?> contents = pendingContents.remove(viewer);
+            if(contents != null) contents.cancel(false);
+            getClickLimiter().remove(viewer);
+        }
+
+        stopTicking();
+        unwatchItems();
+    }
+
+    /**
+     * Returns if a player is viewing this menu.
+     *
+     * @param viewer the unique id of the player.
+     * @return true if the player is using
+     * this menu.
+     */
+    protected boolean isViewing(UUID viewer) {
+        return this.inventory != null && this.inventory.getViewers().stream().anyMatch(player -> player.getUniqueId().equals(viewer));
     }
 
     protected void handleUpdateItems() {
-        getItems().forEach((slot, item) -> {
-            if (item.update()) {
-                requireUpdate(slot);
-            }
-        });
+        for(long slots = tickingSlots; slots != 0; slots &= slots - 1) {
+            int slot = Long.numberOfTrailingZeros(slots);
+            MenuItem item = items.get(slot);
+            if(item != null && item.update()) requireUpdate(slot, true);
+        }
+    }
+
+    /**
+     * Called when an item of this menu
+     * changes the ItemStack it displays.
+     *
+     * @param item the changed item.
+     */
+    protected void onItemChange(MenuItem item) {
+        for(int slot = 0; slot < items.length(); slot++) {
+            if(items.get(slot) == item) requireUpdate(slot, false);
+        }
+    }
+
+    /**
+     * Returns if the item is still
+     * present in this menu.
+     *
+     * @param item the item to check.
+     * @return true if the menu contains the item.
+     */
+    protected boolean holdsItem(MenuItem item) {
+        for(int slot = 0; slot < items.length(); slot++) {
+            if(items.get(slot) == item) return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Start watching an item added to this
+     * menu, if the menu is being viewed.
+     *
+     * @param item the added item.
+     */
+    protected void holdItem(MenuItem item) {
+        if(watchingItems) item.watch(this.itemWatcher);
+    }
+
+    /**
+     * Stop watching an item that was removed
+     * from this menu, if it is not present in
+     * any other slot.
+     *
+     * @param item the removed item.
+     */
+    protected void releaseItem(MenuItem item) {
+        if(watchingItems && !holdsItem(item)) item.unwatch(this.itemWatcher);
+    }
+
+    /**
+     * Start watching the items of this menu when
+     * it is shown. The items may have changed while
+     * they were not watched, so every slot is
+     * checked again.
+     */
+    protected void watchItems() {
+        if(watchingItems) return;
+
+        watchingItems = true;
+        forEachItem(item -> item.watch(this.itemWatcher));
+        requireUpdate(null, false);
+    }
+
+    /**
+     * Stop watching the items of this menu
+     * once nobody is viewing it.
+     */
+    protected void unwatchItems() {
+        if(!watchingItems || hasViewers()) return;
+
+        watchingItems = false;
+        forEachItem(item -> item.unwatch(this.itemWatcher));
+    }
+
+    /**
+     * Performs an action for each item
+     * held by this menu.
+     *
+     * @param action the action to perform.
+     */
+    protected void forEachItem(Consumer<MenuItem> action) {
+        for(int slot = 0; slot < items.length(); slot++) {
+            MenuItem item = items.get(slot);
+            if(item != null) action.accept(item);
+        }
+    }
+
+    private void removeAllItems() {
+        MenuItem[] oldItems = new MenuItem[items.length()];
+        for(int slot = 0; slot < items.length(); slot++) {
+            oldItems[slot] = items.getAndSet(slot, null);
+        }
+        tickingSlots = 0;
+
+        for (MenuItem oldItem : oldItems) {
+            if(oldItem != null) releaseItem(oldItem);
+        }
     }
 
     @RequiredArgsConstructor
     static class Listener implements org.bukkit.event.Listener {
 
-        private static final MenuItem dummyItem = ClickableItem.create(new ItemStack(Material.AIR));
-
         private final JavaPlugin plugin;
-        private final Set<ChestMenu> chestMenus = Sets.newConcurrentHashSet();
 
         @EventHandler
         public void onClick(InventoryClickEvent ce) {
-            for (ChestMenu chestMenu : chestMenus) {
-                if(chestMenu.getInventory().equals(ce.getInventory())) {
-                    // Prevent inventory double clicks from stealing items from the menu
-                    if(ce.getClick() == ClickType.DOUBLE_CLICK) ce.setCancelled(true);
-
-                    // Prevent Shift + Click from placing items inside the menu
-                    if(ce.getClick() == ClickType.SHIFT_LEFT || ce.getClick() == ClickType.SHIFT_RIGHT) ce.setCancelled(true);
-
-                    int slot = ce.getSlot();
-                    if (slot < 9 * chestMenu.getRows()) {
-                        ce.setCancelled(true);
-
-                        chestMenu.getOnClick().accept(ce);
-
-                        MenuItem item = chestMenu.getItem(slot);
-                        if (item == null) item = dummyItem;
-
-                        switch (ce.getClick()) {
-                            case DOUBLE_CLICK:
-                                chestMenu.getOnDouble().accept(ce);
-                                item.getOnDouble().accept(ce);
-                                break;
-                            case SHIFT_LEFT:
-                                chestMenu.getOnShiftPrimary().accept(ce);
-                                item.getOnShiftPrimary().accept(ce);
-                                break;
-                            case SHIFT_RIGHT:
-                                chestMenu.getOnShiftSecondary().accept(ce);
-                                item.getOnShiftSecondary().accept(ce);
-                                break;
-                            case LEFT:
-                                chestMenu.getOnPrimary().accept(ce);
-                                item.getOnPrimary().accept(ce);
-                                break;
-                            case MIDDLE:
-                                chestMenu.getOnMiddle().accept(ce);
-                                item.getOnMiddle().accept(ce);
-                                break;
-                            case RIGHT:
-                                chestMenu.getOnSecondary().accept(ce);
-                                item.getOnSecondary().accept(ce);
-                                break;
-                            case CONTROL_DROP:
-                                chestMenu.getOnDropAll().accept(ce);
-                                item.getOnDropAll().accept(ce);
-                                break;
-                            case DROP:
-                                chestMenu.getOnDrop().accept(ce);
-                                item.getOnDrop().accept(ce);
-                                break;
-                            case NUMBER_KEY:
-                                chestMenu.getOnNumber().accept(ce);
-                                item.getOnNumber().accept(ce);
-                        }
-                    }
-
-                    break;
-                }
+            ChestMenu chestMenu = getMenu(ce.getInventory());
+            if(chestMenu == null) return;
+
+            // Prevent inventory double clicks from stealing items from the menu
+            if(ce.getClick() == ClickType.DOUBLE_CLICK) ce.setCancelled(true);
+
+            // Prevent Shift + Click from placing items inside the menu
+            if(ce.getClick() == ClickType.SHIFT_LEFT || ce.getClick() == ClickType.SHIFT_RIGHT) ce.setCancelled(true);
+
+            int slot = ce.getSlot();
+            if (slot < 9 * chestMenu.getRows()) {
+                ce.setCancelled(true);
+                chestMenu.handleClick(ce, slot);
             }
         }
 
         @EventHandler
-        public void onOpen(InventoryOpenEvent ie) {
-            for (ChestMenu menu : chestMenus) {
-                if (menu.getInventory().equals(ie.getInventory())) {
-                    menu.getOnOpen().accept(ie);
-                    Bukkit.getScheduler().runTask(this.plugin, menu::handlesUpdateItemsTask);
-                    break;
+        public void onDrag(InventoryDragEvent de) {
+            ChestMenu chestMenu = getMenu(de.getInventory());
+            if(chestMenu == null) return;
+
+            // Prevent dragging items from placing items inside the menu
+            int size = 9 * chestMenu.getRows();
+            for (int slot : de.getRawSlots()) {
+                if(slot < size) {
+                    de.setCancelled(true);
+                    return;
                 }
             }
         }
 
+        @EventHandler
+        public void onOpen(InventoryOpenEvent ie) {
+            ChestMenu menu = getMenu(ie.getInventory());
+            if(menu == null) return;
+
+            menu.getOnOpen().accept(ie);
+            menu.startTicking();
+        }
+
         @EventHandler
         public void onClose(InventoryCloseEvent ie) {
-            Iterator<ChestMenu> iterator = chestMenus.iterator();
-
-            while (iterator.hasNext()) {
-                ChestMenu menu = iterator.next();
-                if (ie.getInventory().equals(menu.getInventory())) {
-                    menu.getOnClose().accept(ie);
-                    Bukkit.getScheduler().runTask(this.plugin, () -> {
-                        if (!menu.hasViewers()) iterator.remove();
-                    });
-                    break;
-                }
-            }
+            ChestMenu menu = getMenu(ie.getInventory());
+            if(menu == null) return;
+
+            menu.getOnClose().accept(ie);
+
+            // The player is only removed from the viewers after the event
+            UUID viewer = ie.getPlayer().getUniqueId();
+            Bukkit.getScheduler().runTask(this.plugin, () -> menu.handleClose(viewer));
+        }
+
+        // Track the inventory events of every inventory, as the
+        // handlers of other plugins may open menus too. Each
+        // registered listener counts the event once on enter
+        // and once on exit, so the depth stays balanced
+        @EventHandler(priority = EventPriority.LOWEST)
+        public void enterClick(InventoryClickEvent ce) {
+            handlingEvents++;
+        }
+
+        @EventHandler(priority = EventPriority.MONITOR)
+        public void exitClick(InventoryClickEvent ce) {
+            handlingEvents--;
+        }
+
+        @EventHandler(priority = EventPriority.LOWEST)
+        public void enterDrag(InventoryDragEvent de) {
+            handlingEvents++;
+        }
+
+        @EventHandler(priority = EventPriority.MONITOR)
+        public void exitDrag(InventoryDragEvent de) {
+            handlingEvents--;
+        }
+
+        @EventHandler(priority = EventPriority.LOWEST)
+        public void enterOpen(InventoryOpenEvent ie) {
+            handlingEvents++;
+        }
+
+        @EventHandler(priority = EventPriority.MONITOR)
+        public void exitOpen(InventoryOpenEvent ie) {
+            handlingEvents--;
+        }
+
+        @EventHandler(priority = EventPriority.LOWEST)
+        public void enterClose(InventoryCloseEvent ie) {
+            handlingEvents++;
+        }
+
+        @EventHandler(priority = EventPriority.MONITOR)
+        public void exitClose(InventoryCloseEvent ie) {
+            handlingEvents--;
+        }
+
+        /**
+         * Returns the menu owning the inventory, or null
+         * if the inventory was not created by a menu
+         * of the plugin of this listener.
+         */
+        private ChestMenu getMenu(Inventory inventory) {
+            if(inventory == null) return null;
+
+            InventoryHolder holder = inventory.getHolder();
+            if(!(holder instanceof ChestMenu)) return null;
+
+            ChestMenu menu = (ChestMenu) holder;
+            return menu.plugin == this.plugin ? menu : null;
         }
 
     }
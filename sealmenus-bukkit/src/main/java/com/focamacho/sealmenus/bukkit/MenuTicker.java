@@ -0,0 +1,46 @@
+package com.focamacho.sealmenus.bukkit;
+
+import com.google.common.collect.Sets;
+import lombok.RequiredArgsConstructor;
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.Set;
+
+/**
+ * Ticks the items of every menu of a plugin
+ * that is being viewed, using a single task.
+ *
+ * Menus join when opened and leave when the
+ * last viewer closes them, and the task only
+ * runs while at least one menu is active.
+ */
+@RequiredArgsConstructor
+final class MenuTicker {
+
+    private final JavaPlugin plugin;
+    private final Set<ChestMenu> activeMenus = Sets.newConcurrentHashSet();
+    private BukkitTask task = null;
+
+    void add(ChestMenu menu) {
+        if(activeMenus.add(menu) && task == null) {
+            SealMenus.startClock(this.plugin);
+            task = Bukkit.getScheduler().runTaskTimer(this.plugin, this::tick, 1, 1);
+        }
+    }
+
+    void remove(ChestMenu menu) {
+        if(activeMenus.remove(menu) && activeMenus.isEmpty() && task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+
+    private void tick() {
+        for (ChestMenu menu : activeMenus) {
+            menu.handleUpdateItems();
+        }
+    }
+
+}
@@ -0,0 +1,49 @@
+package com.focamacho.sealmenus.bukkit;
+
+import com.focamacho.sealmenus.bukkit.item.MenuItem;
+
+import java.util.List;
+
+/**
+ * A source of pageable items.
+ *
+ * Menus using a source only create the
+ * items of the pages being viewed, instead
+ * of keeping every item in memory.
+ */
+public interface PageSource {
+
+    /**
+     * Size returned by sources that
+     * don't know the amount of items.
+     */
+    int UNKNOWN_SIZE = -1;
+
+    /**
+     * Returns the amount of items
+     * of this source.
+     *
+     * Menus only request it once, until their
+     * pages are refreshed, and from another thread
+     * when the pages are loaded in the background.
+     * Otherwise it is requested in the main thread,
+     * so it should be cheap to compute.
+     *
+     * @return the amount of items, or UNKNOWN_SIZE
+     * if it is not known.
+     */
+    int size();
+
+    /**
+     * Returns the items in a range of
+     * this source. The list may be smaller
+     * than the requested amount when there
+     * are no more items.
+     *
+     * @param index the index of the first item.
+     * @param amount the amount of items to return.
+     * @return the items in the range.
+     */
+    List<MenuItem> getItems(int index, int amount);
+
+}
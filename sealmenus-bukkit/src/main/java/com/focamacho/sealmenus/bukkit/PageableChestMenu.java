@@ -1,8 +1,11 @@
 package com.focamacho.sealmenus.bukkit;
 
+import com.focamacho.sealmenus.bukkit.item.AsyncClickAction;
+import com.focamacho.sealmenus.bukkit.item.ClickAction;
 import com.focamacho.sealmenus.bukkit.item.ClickableItem;
 import com.focamacho.sealmenus.bukkit.item.MenuItem;
-import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
 import lombok.Getter;
 import org.bukkit.Bukkit;
 import org.bukkit.entity.Player;
@@ -11,31 +14,85 @@ import org.bukkit.event.inventory.InventoryCloseEvent;
 import org.bukkit.event.inventory.InventoryOpenEvent;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.plugin.java.JavaPlugin;
-import org.bukkit.scheduler.BukkitTask;
 
 import java.util.*;
+import java.util.concurrent.Executor;
 import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.function.Predicate;
 
 public class PageableChestMenu extends ChestMenu {
 
     @Getter private final int[] itemSlots;
     protected List<MenuItem> pageableItems;
 
+    // Position of each slot inside a page, or -1 for slots
+    // that are not reserved for pageable items
+    private final int[] slotPositions;
+
+    // Source of the pageable items, used instead
+    // of the list of pageable items when set
+    private PageSource pageSource = null;
+
+    // Items of the recently viewed pages of the source, and the
+    // cached pages with items that need to be updated every tick
+    private final LinkedHashMap<Integer, List<MenuItem>> cachedPages = new LinkedHashMap<>(16, 0.75f, true);
+    private final BitSet tickingPages = new BitSet();
+    @Getter private int maxCachedPages = 8;
+    private int knownPageCount = 1;
+    // Amount of items of the source, requested once
+    // until the pages are refreshed
+    private Integer sourceSize = null;
+    private boolean loadingSize = false;
+
+    // Pages being loaded in the background, and the
+    // generation of the cache they will be added to
+    @Getter private boolean asyncPageLoading = false;
+    private MenuItem loadingItem = null;
+    private final Set<Integer> loadingPages = new HashSet<>();
+    // Pages that failed to load, only retried when the
+    // pages are refreshed or a player flips to them
+    private final Set<Integer> failedPages = new HashSet<>();
+    private int pageGeneration = 0;
+
     private int page;
 
     private AbstractMap.SimpleEntry<Integer, MenuItem> nextPageItem = null;
     private AbstractMap.SimpleEntry<Integer, MenuItem> previousPageItem = null;
 
     // Copies of this menu, allowing multiple players to have it open at the same time,
-    // and view different pages.
-    private List<PageableChestMenu> mirrorMenus = Lists.newArrayList();
+    // and view different pages. Each copy is used by a single player, and is released
+    // to the pool of free copies when closed.
+    private Map<UUID, PageableChestMenu> mirrorMenus = Maps.newConcurrentMap();
+    private Queue<PageableChestMenu> freeMirrorMenus = Queues.newConcurrentLinkedQueue();
     private PageableChestMenu fatherMenu;
 
+    private static final int MAX_FREE_MIRROR_MENUS = 4;
+
+    // Sort and filter of the items displayed by this menu,
+    // kept up to date as the pageable items change
+    private Comparator<MenuItem> viewSorter = null;
+    private Predicate<MenuItem> viewFilter = null;
+    private List<MenuItem> viewItems = null;
+    // Player this menu was opened for, the view
+    // only lasts while the player keeps it open
+    private UUID owner = null;
+
+    // Pages being viewed in the current tick
+    private final BitSet visiblePages = new BitSet();
+
     protected PageableChestMenu(String title, int rows, int[] itemSlots, JavaPlugin plugin) {
         super(title, rows, plugin);
         this.itemSlots = itemSlots;
+        this.slotPositions = new int[rows * 9];
+        Arrays.fill(this.slotPositions, -1);
+        for (int i = 0; i < itemSlots.length; i++) {
+            if(itemSlots[i] < 0 || itemSlots[i] >= rows * 9) throw new IllegalArgumentException("The slots for pageable items can't be less than zero or greater than the inventory size.");
+            this.slotPositions[itemSlots[i]] = i;
+        }
+
         this.page = 0;
-        this.pageableItems = Lists.newArrayList();
+        this.pageableItems = new PageableItemList();
         this.fatherMenu = null;
     }
 
@@ -45,12 +102,9 @@ public class PageableChestMenu extends ChestMenu {
         this.items = father.items;
         this.pageableItems = father.pageableItems;
 
-        if(father.nextPageItem != null) this.setNextPageItem(father.nextPageItem.getValue().getItem(), father.nextPageItem.getKey());
-        if(father.previousPageItem != null) this.setPreviousPageItem(father.previousPageItem.getValue().getItem(), father.previousPageItem.getKey());
-
-        this.mirrorMenus = null;
+        this.mirrorMenus = Collections.emptyMap();
+        this.freeMirrorMenus = null;
         this.fatherMenu = father;
-        father.mirrorMenus.add(this);
     }
 
     /**
@@ -62,8 +116,12 @@ public class PageableChestMenu extends ChestMenu {
      * @return this menu.
      */
     public PageableChestMenu addPageableItem(MenuItem item, int index) {
-        pageableItems.add(Math.min(index, pageableItems.size()), item);
-        requireUpdate(null);
+        removePageSource();
+        index = Math.min(index, pageableItems.size());
+        pageableItems.add(index, item);
+
+        holdItem(item);
+        requirePageableUpdate(index, item, true);
         return this;
     }
 
@@ -85,8 +143,12 @@ public class PageableChestMenu extends ChestMenu {
      * @return this menu.
      */
     public PageableChestMenu removePageableItem(MenuItem item) {
-        pageableItems.remove(item);
-        requireUpdate(null);
+        int index = pageSource == null ? indexOfPageableItem(item) : -1;
+        if(index >= 0) {
+            pageableItems.remove(index);
+            releaseItem(item);
+            requirePageableUpdate(index, item, false);
+        }
         return this;
     }
 
@@ -107,10 +169,16 @@ public class PageableChestMenu extends ChestMenu {
      * @return this menu.
      */
     public PageableChestMenu setPageableItems(List<MenuItem> items) {
+        removePageSource();
+        List<MenuItem> oldItems = new ArrayList<>(this.pageableItems);
         this.pageableItems.clear();
+        oldItems.forEach(this::releaseItem);
+
         pageableItems.addAll(items);
+        items.forEach(this::holdItem);
         this.page = 0;
-        requireUpdate(null);
+        invalidateViews();
+        requireUpdate(null, false);
         return this;
     }
 
@@ -120,11 +188,176 @@ public class PageableChestMenu extends ChestMenu {
      * @return this menu.
      */
     public PageableChestMenu clearPageableItems() {
+        removePageSource();
+        List<MenuItem> oldItems = new ArrayList<>(this.pageableItems);
         this.pageableItems.clear();
-        requireUpdate(null);
+        oldItems.forEach(this::releaseItem);
+        invalidateViews();
+        requireUpdate(null, false);
+        return this;
+    }
+
+    /**
+     * Apply multiple changes to this menu at once.
+     *
+     * @see ChestMenu#edit(Consumer)
+     * @param edit the edit to apply.
+     * @return this menu.
+     */
+    public PageableChestMenu editPageable(Consumer<PageableChestMenu> edit) {
+        beginEdit();
+        try {
+            edit.accept(this);
+        } finally {
+            endEdit();
+        }
+        return this;
+    }
+
+    /**
+     * Queue an edit to this menu, from any thread.
+     *
+     * @see ChestMenu#queueEdit(Consumer)
+     * @param edit the edit to apply.
+     * @return this menu.
+     */
+    public PageableChestMenu queuePageableEdit(Consumer<PageableChestMenu> edit) {
+        enqueueEdit(() -> edit.accept(this));
+        return this;
+    }
+
+    /**
+     * Set how the pageable items are sorted and filtered
+     * for a player viewing this menu. The other players
+     * keep seeing the items in their own order.
+     *
+     * The view is kept as the pageable items are
+     * added and removed, but the items are not sorted
+     * again when the ItemStack they display changes.
+     * Views are ignored by menus using a page source.
+     *
+     * The menu must have been opened for the player
+     * already, and the view is removed when the
+     * player closes it.
+     *
+     * @param player the player viewing this menu.
+     * @param sorter the order of the items, or null to
+     *               keep the order they were added in.
+     * @param filter the items to display, or null to
+     *               display all of them.
+     * @return this menu.
+     */
+    public PageableChestMenu setView(Player player, Comparator<MenuItem> sorter, Predicate<MenuItem> filter) {
+        PageableChestMenu menu = this.fatherMenu == null ? getOwnedMenu(player.getUniqueId()) : this.fatherMenu.getOwnedMenu(player.getUniqueId());
+        if(menu == null) throw new IllegalStateException("The menu must be opened for the player before setting a view.");
+
+        menu.viewSorter = sorter;
+        menu.viewFilter = filter;
+        menu.viewItems = null;
+        menu.page = 0;
+        menu.requireLocalUpdate();
         return this;
     }
 
+    /**
+     * Remove the sort and filter set for
+     * a player viewing this menu.
+     *
+     * @param player the player viewing this menu.
+     * @return this menu.
+     */
+    public PageableChestMenu clearView(Player player) {
+        return setView(player, null, null);
+    }
+
+    /**
+     * Set the source of the pageable items of this menu.
+     * Only the items of the pages being viewed are
+     * requested to the source, and the pageable items
+     * added to this menu are removed.
+     *
+     * @param source the source of the items.
+     * @return this menu.
+     */
+    public PageableChestMenu setPageSource(PageSource source) {
+        clearPageableItems();
+        this.pageSource = source;
+        this.page = 0;
+        requireUpdate(null, false);
+        return this;
+    }
+
+    /**
+     * Discard the pages and the amount of items
+     * loaded from the source of this menu, requesting
+     * them again for the pages being viewed.
+     *
+     * @return this menu.
+     */
+    public PageableChestMenu refreshPages() {
+        invalidatePages();
+        requireUpdate(null, false);
+        return this;
+    }
+
+    /**
+     * Set the amount of pages loaded from
+     * the source that are kept in memory.
+     * Pages being viewed are always kept, even
+     * if there are more of them than this amount.
+     *
+     * @param maxCachedPages the amount of pages.
+     * @return this menu.
+     */
+    public PageableChestMenu setMaxCachedPages(int maxCachedPages) {
+        if(maxCachedPages < 1) throw new IllegalArgumentException("At least one page must be kept in memory.");
+        this.maxCachedPages = maxCachedPages;
+        return this;
+    }
+
+    /**
+     * Set if the pages of the source of this menu should
+     * be loaded in the background. While a page is loaded,
+     * its slots display the loading item, and the pages
+     * next to the viewed ones are loaded in advance.
+     *
+     * The source must be safe to use from other
+     * threads to enable this option.
+     *
+     * @param asyncPageLoading true to load the pages
+     *                         in the background.
+     * @return this menu.
+     */
+    public PageableChestMenu setAsyncPageLoading(boolean asyncPageLoading) {
+        this.asyncPageLoading = asyncPageLoading;
+        return this;
+    }
+
+    /**
+     * Set the item displayed in the slots of the
+     * pageable items while their page is loaded.
+     *
+     * @param item the item to display, or null
+     *             to leave the slots empty.
+     * @return this menu.
+     */
+    public PageableChestMenu setLoadingItem(ItemStack item) {
+        this.loadingItem = item == null ? null : ClickableItem.create(item);
+        requireUpdate(null, false);
+        return this;
+    }
+
+    /**
+     * Returns the item displayed in the slots of
+     * the pageable items while their page is loaded.
+     *
+     * @return the item, or null if the slots
+     * are left empty.
+     */
+    public ItemStack getLoadingItem() {
+        return loadingItem == null ? null : loadingItem.getItem();
+    }
+
     /**
      * Returns the slot for the inserted pageable item.
      *
@@ -132,11 +365,11 @@ public class PageableChestMenu extends ChestMenu {
      * not present in the menu.
      */
     public Map.Entry<Integer, Integer> getPageableItemSlot(MenuItem item) {
-        if(!this.pageableItems.contains(item)) return null;
+        int indexOf = indexOfPageableItem(item);
+        if(indexOf < 0) return null;
 
-        int indexOf = pageableItems.indexOf(item);
-        int page = (int) Math.floor((float) indexOf / itemSlots.length);
-        int slot = itemSlots[indexOf - (page * itemSlots.length)];
+        int page = indexOf / itemSlots.length;
+        int slot = itemSlots[indexOf % itemSlots.length];
 
         return new AbstractMap.SimpleEntry<>(page, slot);
     }
@@ -149,7 +382,15 @@ public class PageableChestMenu extends ChestMenu {
      * @return the quantity of pages of this menu.
      */
     public int getPageCount() {
-        return (int) Math.max(1, Math.ceil(this.pageableItems.size() / (double) itemSlots.length));
+        if(fatherMenu != null) return fatherMenu.getPageCount();
+
+        if(pageSource != null) {
+            int size = getSourceSize();
+            if(size == PageSource.UNKNOWN_SIZE) return knownPageCount;
+            return Math.max(1, (size + itemSlots.length - 1) / itemSlots.length);
+        }
+
+        return Math.max(1, (this.pageableItems.size() + itemSlots.length - 1) / itemSlots.length);
     }
 
     /**
@@ -161,16 +402,8 @@ public class PageableChestMenu extends ChestMenu {
      * @return the current page index.
      */
     public int getCurrentPage(Player player) {
-        if(this.fatherMenu != null && this.fatherMenu.inventory != null && this.fatherMenu.inventory.getViewers().contains(player)) {
-            return this.fatherMenu.page;
-        } else if(this.inventory != null && this.inventory.getViewers().contains(player)) {
-            return this.page;
-        } else {
-            Optional<PageableChestMenu> menu = mirrorMenus.stream().filter(m -> m.inventory != null && m.inventory.getViewers().contains(player)).findFirst();
-            if(menu.isPresent()) return menu.get().page;
-        }
-
-        return 0;
+        PageableChestMenu menu = this.fatherMenu == null ? getViewerMenu(player) : this.fatherMenu.getViewerMenu(player);
+        return menu == null ? 0 : menu.page;
     }
 
     /**
@@ -184,28 +417,24 @@ public class PageableChestMenu extends ChestMenu {
      */
     public PageableChestMenu setNextPageItem(ItemStack item, int slot) {
         if(slot < 0 || slot >= this.getRows() * 9) throw new IllegalArgumentException("The slot can't be less than zero or greater than the inventory size.");
-        for(int slotIndex : itemSlots) {
-            if(slot == slotIndex) throw new IllegalArgumentException("You can't add an item in a slot reserved for pageable items.");
-        }
-
-        if(fatherMenu == null) mirrorMenus.forEach(menu -> menu.setNextPageItem(item, slot));
+        if(isPageableSlot(slot)) throw new IllegalArgumentException("You can't add an item in a slot reserved for pageable items.");
 
         Integer oldSlot = nextPageItem != null ? nextPageItem.getKey() : null;
         nextPageItem = new AbstractMap.SimpleEntry<>(slot, ClickableItem.create(item)
                 .setOnPrimary(click -> {
                     if(click.getWhoClicked() instanceof Player) {
-                        Bukkit.getScheduler().runTask(this.plugin, () -> {
-                            if(this.page + 1 < getPageCount()) {
-                                this.page += 1;
-                                update();
-                            }
-                        });
+                        PageableChestMenu menu = getViewerMenu((Player) click.getWhoClicked());
+                        if(menu != null && menu.hasNextPage(menu.page)) {
+                            menu.page += 1;
+                            menu.requireLocalUpdate();
+                            prefetchPages(menu.page);
+                        }
                     }
                 })
         );
 
-        requireUpdate(slot);
-        if(!Objects.equals(oldSlot, slot)) requireUpdate(oldSlot);
+        requireUpdate(slot, false);
+        if(!Objects.equals(oldSlot, slot)) requireUpdate(oldSlot, false);
 
         return this;
     }
@@ -221,82 +450,64 @@ public class PageableChestMenu extends ChestMenu {
      */
     public PageableChestMenu setPreviousPageItem(ItemStack item, int slot) {
         if(slot < 0 || slot >= this.getRows() * 9) throw new IllegalArgumentException("The slot can't be less than zero or greater than the inventory size.");
-        for(int slotIndex : itemSlots) {
-            if(slot == slotIndex) throw new IllegalArgumentException("You can't add an item in a slot reserved for pageable items.");
-        }
-
-        if(fatherMenu == null) mirrorMenus.forEach(menu -> menu.setPreviousPageItem(item, slot));
+        if(isPageableSlot(slot)) throw new IllegalArgumentException("You can't add an item in a slot reserved for pageable items.");
 
         Integer oldSlot = previousPageItem != null ? previousPageItem.getKey() : null;
         previousPageItem = new AbstractMap.SimpleEntry<>(slot, ClickableItem.create(item)
                 .setOnPrimary(click -> {
                     if(click.getWhoClicked() instanceof Player) {
-                        Bukkit.getScheduler().runTask(this.plugin, () -> {
-                            if(this.page > 0) {
-                                this.page -= 1;
-                                update();
-                            }
-                        });
+                        PageableChestMenu menu = getViewerMenu((Player) click.getWhoClicked());
+                        if(menu != null && menu.page > 0) {
+                            menu.page -= 1;
+                            menu.requireLocalUpdate();
+                            prefetchPages(menu.page);
+                        }
                     }
                 })
         );
 
-        requireUpdate(slot);
-        if(!Objects.equals(oldSlot, slot)) requireUpdate(oldSlot);
+        requireUpdate(slot, false);
+        if(!Objects.equals(oldSlot, slot)) requireUpdate(oldSlot, false);
 
         return this;
     }
 
     @Override
     public ChestMenu addItem(MenuItem item, int slot) {
-        for(int slotIndex : itemSlots) {
-            if(slot == slotIndex) throw new IllegalArgumentException("You can't add an item in a slot reserved for pageable items.");
-        }
+        if(isPageableSlot(slot)) throw new IllegalArgumentException("You can't add an item in a slot reserved for pageable items.");
 
         return super.addItem(item, slot);
     }
 
     @Override
-    public boolean containsItem(Integer slot) {
-        if(nextPageItem != null && Objects.equals(slot, nextPageItem.getKey()) && getPageCount() > this.page + 1) return true;
-        else if(previousPageItem != null && Objects.equals(slot, previousPageItem.getKey()) && this.page > 0) return true;
+    public boolean containsItem(int slot) {
+        AbstractMap.SimpleEntry<Integer, MenuItem> nextPageItem = getNextPageEntry();
+        AbstractMap.SimpleEntry<Integer, MenuItem> previousPageItem = getPreviousPageEntry();
+        if(nextPageItem != null && slot == nextPageItem.getKey() && hasNextPage(this.page)) return true;
+        else if(previousPageItem != null && slot == previousPageItem.getKey() && this.page > 0) return true;
 
-        for (int i = 0; i < itemSlots.length; i++) {
-            int itemSlot = itemSlots[i];
-            if (slot == itemSlot) {
-                if ((this.pageableItems.size() - 1) >= (itemSlots.length * page + i))
-                    return true;
-                break;
-            }
-        }
+        if(isPageableSlot(slot) && getDisplayedItem(itemSlots.length * page + slotPositions[slot]) != null)
+            return true;
 
         return super.containsItem(slot);
     }
 
     @Override
-    public void requireUpdate(Integer slot) {
-        if(fatherMenu == null) mirrorMenus.forEach(menu -> menu.requireUpdate(slot));
-
-        if(this.inventory != null) {
-            if(hasViewers())
-                if(slot == null) update();
-                else update(slot);
-            else this.slotsRequiringUpdate.add(slot);
-        }
+    protected void requireUpdate(Integer slot, boolean force) {
+        mirrorMenus.values().forEach(menu -> menu.requireUpdate(slot, force));
+        super.requireUpdate(slot, force);
     }
 
     @Override
-    public MenuItem getItem(Integer slot) {
-        if(nextPageItem != null && Objects.equals(slot, nextPageItem.getKey()) && getPageCount() > this.page + 1) return nextPageItem.getValue();
-        else if(previousPageItem != null && Objects.equals(slot, previousPageItem.getKey()) && this.page > 0) return previousPageItem.getValue();
-
-        for (int i = 0; i < itemSlots.length; i++) {
-            int itemSlot = itemSlots[i];
-            if (slot == itemSlot) {
-                if ((this.pageableItems.size() - 1) >= (itemSlots.length * page + i))
-                    return pageableItems.get(itemSlots.length * page + i);
-                break;
-            }
+    public MenuItem getItem(int slot) {
+        AbstractMap.SimpleEntry<Integer, MenuItem> nextPageItem = getNextPageEntry();
+        AbstractMap.SimpleEntry<Integer, MenuItem> previousPageItem = getPreviousPageEntry();
+        if(nextPageItem != null && slot == nextPageItem.getKey() && hasNextPage(this.page)) return nextPageItem.getValue();
+        else if(previousPageItem != null && slot == previousPageItem.getKey() && this.page > 0) return previousPageItem.getValue();
+
+        if(isPageableSlot(slot)) {
+            MenuItem item = getDisplayedItem(itemSlots.length * page + slotPositions[slot]);
+            if(item != null) return item;
         }
 
         return super.getItem(slot);
@@ -308,16 +519,36 @@ public class PageableChestMenu extends ChestMenu {
     }
 
     public void open(Player player, int page) {
-        if(this.inventory == null || !super.hasViewers()) {
-            this.page = Math.min(getPageCount() - 1, page);
-            requireUpdate(null);
-            super.open(player);
-        } else new PageableChestMenu(this).open(player, page);
+        if(this.fatherMenu != null) {
+            this.fatherMenu.open(player, page);
+            return;
+        }
+
+        PageableChestMenu menu = this;
+        if(this.inventory != null && super.hasViewers()) {
+            menu = mirrorMenus.get(player.getUniqueId());
+            if(menu == null) {
+                menu = freeMirrorMenus.poll();
+                if(menu == null) menu = new PageableChestMenu(this);
+                mirrorMenus.put(player.getUniqueId(), menu);
+            }
+        }
+
+        // A view only belongs to the player it was set for
+        if(!player.getUniqueId().equals(menu.owner)) {
+            menu.resetView();
+            menu.owner = player.getUniqueId();
+        }
+
+        menu.page = menu.hasView() ? Math.min(menu.getViewPageCount() - 1, page) : Math.min(getPageCount() - 1, page);
+        prefetchPages(menu.page);
+        menu.requireLocalUpdate();
+        menu.openMenu(player);
     }
 
     @Override
     public boolean hasViewers() {
-        return super.hasViewers() || (this.fatherMenu == null && mirrorMenus.stream().anyMatch(PageableChestMenu::hasViewers));
+        return super.hasViewers() || mirrorMenus.values().stream().anyMatch(PageableChestMenu::hasViewers);
     }
 
     @Override
@@ -326,6 +557,7 @@ public class PageableChestMenu extends ChestMenu {
 
         copy.setOnOpen(getOnOpen());
         copy.setOnClose(getOnClose());
+        copy.setOnOpenLatency(getOnOpenLatency());
 
         copy.setOnPrimary(getOnPrimary());
         copy.setOnSecondary(getOnSecondary());
@@ -336,44 +568,715 @@ public class PageableChestMenu extends ChestMenu {
         copy.setOnShiftPrimary(getOnShiftPrimary());
         copy.setOnShiftSecondary(getOnShiftSecondary());
         copy.setOnDouble(getOnDouble());
+        copy.getClickLimiter().copyFrom(getClickLimiter());
+        copy.setClickExecutor(this.clickExecutor);
+        for (ClickAction action : ClickAction.values()) copy.setAsyncAction(action, getAsyncAction(action));
 
         if(nextPageItem != null) copy.setNextPageItem(nextPageItem.getValue().getItem(), nextPageItem.getKey());
         if(previousPageItem != null) copy.setPreviousPageItem(previousPageItem.getValue().getItem(), previousPageItem.getKey());
 
         getItems().forEach((slot, item) -> copy.addItem(item.copy(), slot));
-        copy.setPageableItems(getPageableItems());
+        copy.setAsyncPageLoading(asyncPageLoading);
+        copy.setLoadingItem(getLoadingItem());
+        if(pageSource != null) copy.setPageSource(pageSource);
+        else copy.setPageableItems(getPageableItems());
         return copy;
     }
 
     @Override
-    protected BukkitTask getUpdateItemsTask() {
-        if(fatherMenu == null) return super.getUpdateItemsTask();
-        else return fatherMenu.getUpdateItemsTask();
+    protected void handleClose(UUID viewer) {
+        if(fatherMenu == null) {
+            super.handleClose(viewer);
+            if(viewer.equals(this.owner) && !super.isViewing(viewer)) {
+                resetView();
+                this.owner = null;
+            }
+        } else {
+            fatherMenu.releaseMirrorMenu(viewer, this);
+            fatherMenu.handleClose(viewer);
+        }
+    }
+
+    /**
+     * Sets the minimum time between clicks of
+     * a player on the next and previous page
+     * items. Clicks in a shorter time are
+     * cancelled without changing the page.
+     *
+     * @param millis the time, in milliseconds,
+     *               or 0 to allow any clicks.
+     * @return this menu.
+     */
+    public PageableChestMenu setPageDebounce(long millis) {
+        getClickLimiter().setDebounce(millis);
+        return this;
+    }
+
+    /**
+     * Returns the minimum time between clicks
+     * of a player on the page items.
+     *
+     * @return the time, in milliseconds.
+     */
+    public long getPageDebounce() {
+        return getClickLimiter().getDebounce();
+    }
+
+    @Override
+    ClickLimiter getClickLimiter() {
+        return this.fatherMenu == null ? super.getClickLimiter() : this.fatherMenu.getClickLimiter();
+    }
+
+    @Override
+    protected boolean isDebounced(int slot) {
+        AbstractMap.SimpleEntry<Integer, MenuItem> nextPageItem = getNextPageEntry();
+        AbstractMap.SimpleEntry<Integer, MenuItem> previousPageItem = getPreviousPageEntry();
+        return (nextPageItem != null && slot == nextPageItem.getKey()) || (previousPageItem != null && slot == previousPageItem.getKey());
     }
 
     @Override
-    protected ChestMenu setUpdateItemsTask(BukkitTask updateItemsTask) {
-        if(fatherMenu == null) return super.setUpdateItemsTask(updateItemsTask);
-        else return fatherMenu.setUpdateItemsTask(updateItemsTask);
+    protected int getActionMask() {
+        return this.fatherMenu == null ? super.getActionMask() : this.fatherMenu.getActionMask();
     }
 
     @Override
-    protected void handlesUpdateItemsTask() {
-        if(fatherMenu == null) super.handlesUpdateItemsTask();
-        else fatherMenu.handlesUpdateItemsTask();
+    public AsyncClickAction getAsyncAction(ClickAction action) {
+        return this.fatherMenu == null ? super.getAsyncAction(action) : this.fatherMenu.getAsyncAction(action);
+    }
+
+    @Override
+    protected int getAsyncActionMask() {
+        return this.fatherMenu == null ? super.getAsyncActionMask() : this.fatherMenu.getAsyncActionMask();
+    }
+
+    @Override
+    public Executor getClickExecutor() {
+        return this.fatherMenu == null ? super.getClickExecutor() : this.fatherMenu.getClickExecutor();
+    }
+
+    @Override
+    protected ChestMenu getRootMenu() {
+        return this.fatherMenu == null ? this : this.fatherMenu;
+    }
+
+    @Override
+    protected boolean isEditing() {
+        return fatherMenu == null ? super.isEditing() : fatherMenu.isEditing();
+    }
+
+    @Override
+    protected void handleEditEnd() {
+        super.handleEditEnd();
+        mirrorMenus.values().forEach(ChestMenu::handleEditEnd);
+    }
+
+    @Override
+    protected boolean isViewing(UUID viewer) {
+        return super.isViewing(viewer) || mirrorMenus.values().stream().anyMatch(menu -> menu.isViewing(viewer));
+    }
+
+    @Override
+    protected void startTicking() {
+        if(fatherMenu == null) super.startTicking();
+        else fatherMenu.startTicking();
+    }
+
+    @Override
+    protected void stopTicking() {
+        if(fatherMenu == null) super.stopTicking();
+        else fatherMenu.stopTicking();
+    }
+
+    @Override
+    protected void watchItems() {
+        if(fatherMenu == null) super.watchItems();
+        else fatherMenu.watchItems();
+    }
+
+    @Override
+    protected void unwatchItems() {
+        if(fatherMenu == null) super.unwatchItems();
+        else fatherMenu.unwatchItems();
+    }
+
+    @Override
+    protected void forEachItem(Consumer<MenuItem> action) {
+        super.forEachItem(action);
+        if(pageSource == null) {
+            pageableItems.forEach(action);
+            return;
+        }
+
+        List<MenuItem> items = new ArrayList<>();
+        synchronized (cachedPages) {
+            cachedPages.values().forEach(items::addAll);
+        }
+        items.forEach(action);
     }
 
     @Override
     protected void handleUpdateItems() {
         super.handleUpdateItems();
 
-        getPageableItems().forEach(item -> {
-            if (item.update()) {
-                requireUpdate(getPageableItemSlot(item).getValue());
+        // Only the items in the pages being viewed are ticked, the
+        // others catch up when their page is opened again
+        visiblePages.clear();
+        if(super.hasViewers() && !hasView()) visiblePages.set(this.page);
+        for (PageableChestMenu menu : mirrorMenus.values()) {
+            if(menu.hasViewers() && !menu.hasView()) visiblePages.set(menu.page);
+        }
+
+        for (int page = visiblePages.nextSetBit(0); page >= 0; page = visiblePages.nextSetBit(page + 1)) {
+            if(!hasTickingItems(page)) continue;
+            int start = page * itemSlots.length;
+
+            for (int position = 0; position < itemSlots.length; position++) {
+                MenuItem item = getPageableItem(start + position);
+                if(item == null) break;
+                if(item.isTicking() && item.update()) requirePageUpdate(page, itemSlots[position], true);
+            }
+        }
+
+        // Items already ticked for other menus don't change again, but
+        // the slots are only written if the item changed since then
+        if(super.hasViewers() && hasView()) updateViewTickingItems();
+        for (PageableChestMenu menu : mirrorMenus.values()) {
+            if(menu.hasViewers() && menu.hasView()) menu.updateViewTickingItems();
+        }
+    }
+
+    @Override
+    protected void onItemChange(MenuItem item) {
+        super.onItemChange(item);
+
+        Map.Entry<Integer, Integer> slot = getPageableItemSlot(item);
+        if(slot != null) requirePageUpdate(slot.getKey(), slot.getValue(), false);
+
+        if(hasView()) requireViewItemUpdate(item);
+        mirrorMenus.values().forEach(menu -> {
+            if(menu.hasView()) menu.requireViewItemUpdate(item);
+        });
+    }
+
+    @Override
+    protected boolean holdsItem(MenuItem item) {
+        return super.holdsItem(item) || indexOfPageableItem(item) >= 0;
+    }
+
+    private boolean isPageableSlot(int slot) {
+        return slot >= 0 && slot < slotPositions.length && slotPositions[slot] >= 0;
+    }
+
+    private int indexOfPageableItem(MenuItem item) {
+        if(fatherMenu != null) return fatherMenu.indexOfPageableItem(item);
+
+        if(pageSource != null) {
+            synchronized (cachedPages) {
+                for (Map.Entry<Integer, List<MenuItem>> page : cachedPages.entrySet()) {
+                    List<MenuItem> items = page.getValue();
+                    for (int i = 0; i < items.size(); i++) {
+                        if(items.get(i) == item) return page.getKey() * itemSlots.length + i;
+                    }
+                }
             }
+            return -1;
+        }
+
+        if(pageableItems instanceof PageableItemList) return ((PageableItemList) pageableItems).indexOfIdentity(item);
+        return pageableItems.indexOf(item);
+    }
+
+    /**
+     * Mark a pageable slot as required update,
+     * only for the menus displaying the page.
+     *
+     * @param page the page of the slot.
+     * @param slot the slot to mark.
+     * @param force if the slot should be written
+     *              even if its item did not change.
+     */
+    private void requirePageUpdate(int page, int slot, boolean force) {
+        if(this.page == page && !hasView()) super.requireUpdate(slot, force);
+        mirrorMenus.values().forEach(menu -> {
+            if(menu.page == page && !menu.hasView()) menu.requireUpdate(slot, force);
+        });
+    }
+
+    /**
+     * Returns the menu being viewed by the player,
+     * this menu or one of its mirrors.
+     *
+     * @param player the player to check.
+     * @return the menu, or null if the player is
+     * not viewing this menu.
+     */
+    private PageableChestMenu getViewerMenu(Player player) {
+        if(isViewing(player)) return this;
+
+        PageableChestMenu menu = mirrorMenus.get(player.getUniqueId());
+        return menu != null && menu.isViewing(player) ? menu : null;
+    }
+
+    private boolean isViewing(Player player) {
+        return this.inventory != null && this.inventory.getViewers().contains(player);
+    }
+
+    /**
+     * Returns the menu opened for a player, which
+     * may not be shown to the player yet.
+     */
+    private PageableChestMenu getOwnedMenu(UUID player) {
+        if(player.equals(this.owner)) return this;
+
+        PageableChestMenu menu = mirrorMenus.get(player);
+        return menu != null && player.equals(menu.owner) ? menu : null;
+    }
+
+    private void resetView() {
+        this.viewSorter = null;
+        this.viewFilter = null;
+        this.viewItems = null;
+    }
+
+    /**
+     * Removes a mirror menu from its viewer, keeping
+     * it to be reused if it is not being viewed anymore.
+     *
+     * @param viewer the unique id of the player.
+     * @param menu the mirror menu.
+     */
+    private void releaseMirrorMenu(UUID viewer, PageableChestMenu menu) {
+        if(!menu.hasViewers() && mirrorMenus.remove(viewer, menu)) {
+            menu.resetView();
+            menu.owner = null;
+            if(freeMirrorMenus.size() < MAX_FREE_MIRROR_MENUS) freeMirrorMenus.offer(menu);
+        }
+    }
+
+    /**
+     * Returns the pageable item in an index,
+     * loading its page from the source if needed.
+     *
+     * @param index the index of the item.
+     * @return the item, or null if there is
+     * no item in the index.
+     */
+    private MenuItem getPageableItem(int index) {
+        if(fatherMenu != null) return fatherMenu.getPageableItem(index);
+
+        if(pageSource == null) return index < pageableItems.size() ? pageableItems.get(index) : null;
+
+        List<MenuItem> items = getSourcePage(index / itemSlots.length);
+        if(items == null) return loadingItem;
+
+        int position = index % itemSlots.length;
+        return position < items.size() ? items.get(position) : null;
+    }
+
+    /**
+     * Returns if a page may have items that need
+     * to be updated every tick. Pages of the source
+     * that are not loaded only tick the loading item.
+     */
+    private boolean hasTickingItems(int page) {
+        int start = page * itemSlots.length;
+        if(pageSource == null) {
+            return !(pageableItems instanceof PageableItemList) || ((PageableItemList) pageableItems).hasTickingItems(start, start + itemSlots.length);
+        }
+
+        synchronized (cachedPages) {
+            if(cachedPages.containsKey(page)) return tickingPages.get(page);
+        }
+        return asyncPageLoading && loadingItem != null && loadingItem.isTicking();
+    }
+
+    private boolean hasNextPage(int page) {
+        if(hasView()) return getViewPageCount() > page + 1;
+        if(fatherMenu != null) return fatherMenu.hasNextPage(page);
+
+        // Sources without a known size only tell if there
+        // is a next page after loading the current one
+        if(pageSource != null && !asyncPageLoading && getSourceSize() == PageSource.UNKNOWN_SIZE) getSourcePage(page);
+        return getPageCount() > page + 1;
+    }
+
+    /**
+     * Returns the items of a page of the source, loading
+     * it if needed.
+     *
+     * @param page the page to get.
+     * @return the items of the page, or null if the
+     * page is being loaded in the background.
+     */
+    private List<MenuItem> getSourcePage(int page) {
+        List<MenuItem> items;
+        synchronized (cachedPages) {
+            items = cachedPages.get(page);
+        }
+
+        if(items != null) return items;
+        if(asyncPageLoading) {
+            loadPageAsync(page);
+            return null;
+        }
+
+        return cachePage(page, pageSource.getItems(page * itemSlots.length, itemSlots.length));
+    }
+
+    private void loadPageAsync(int page) {
+        PageSource source;
+        int generation;
+        synchronized (cachedPages) {
+            if(cachedPages.containsKey(page) || failedPages.contains(page) || !loadingPages.add(page)) return;
+            source = this.pageSource;
+            generation = this.pageGeneration;
+        }
+
+        Bukkit.getScheduler().runTaskAsynchronously(this.plugin, () -> {
+            List<MenuItem> items = null;
+            try {
+                items = source.getItems(page * itemSlots.length, itemSlots.length);
+            } finally {
+                List<MenuItem> loadedItems = items;
+
+                // The items are added in the main thread, and the
+                // viewers of the page are refreshed in a single flush
+                Bukkit.getScheduler().runTask(this.plugin, () -> {
+                    synchronized (cachedPages) {
+                        if(generation != pageGeneration) return;
+                        loadingPages.remove(page);
+                        if(loadedItems == null) failedPages.add(page);
+                    }
+
+                    if(loadedItems != null) {
+                        cachePage(page, loadedItems);
+                        refreshPage(page);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Returns the amount of items of the source. It is
+     * only requested once, until the pages are refreshed.
+     *
+     * @return the amount of items, or UNKNOWN_SIZE if
+     * it is not known or is being loaded.
+     */
+    private int getSourceSize() {
+        synchronized (cachedPages) {
+            if(sourceSize != null) return sourceSize;
+        }
+
+        if(asyncPageLoading) {
+            loadSizeAsync();
+            return PageSource.UNKNOWN_SIZE;
+        }
+
+        int size = pageSource.size();
+        synchronized (cachedPages) {
+            sourceSize = size;
+        }
+        return size;
+    }
+
+    private void loadSizeAsync() {
+        PageSource source;
+        int generation;
+        synchronized (cachedPages) {
+            if(loadingSize) return;
+            loadingSize = true;
+            source = this.pageSource;
+            generation = this.pageGeneration;
+        }
+
+        Bukkit.getScheduler().runTaskAsynchronously(this.plugin, () -> {
+            int size = PageSource.UNKNOWN_SIZE;
+            try {
+                size = source.size();
+            } finally {
+                int loadedSize = size;
+
+                // Sources failing to count are paged as sources
+                // without a known size until the pages are refreshed
+                Bukkit.getScheduler().runTask(this.plugin, () -> {
+                    synchronized (cachedPages) {
+                        if(generation != pageGeneration) return;
+                        loadingSize = false;
+                        sourceSize = loadedSize;
+                    }
+
+                    // The page buttons depend on the page count
+                    requireUpdate(null, false);
+                });
+            }
+        });
+    }
+
+    private void prefetchPages(int page) {
+        if(pageSource == null || !asyncPageLoading) return;
+
+        // Flipping to a page retries the pages around it
+        synchronized (cachedPages) {
+            for (int retried = page - 1; retried <= page + 1; retried++) failedPages.remove(retried);
+        }
+
+        loadPageAsync(page);
+        if(page > 0) loadPageAsync(page - 1);
+        if(page + 1 < getPageCount()) loadPageAsync(page + 1);
+    }
+
+    /**
+     * Returns the pages being shown by
+     * this menu and its mirror menus.
+     */
+    private BitSet getShownPages() {
+        BitSet shownPages = new BitSet();
+        if(super.hasViewers()) shownPages.set(this.page);
+        for (PageableChestMenu menu : mirrorMenus.values()) {
+            if(menu.hasViewers()) shownPages.set(menu.page);
+        }
+        return shownPages;
+    }
+
+    private void refreshPage(int page) {
+        if(this.page == page) requireLocalUpdate();
+        mirrorMenus.values().forEach(menu -> {
+            if(menu.page == page) menu.requireLocalUpdate();
         });
     }
 
+    private List<MenuItem> cachePage(int page, List<MenuItem> loadedItems) {
+        List<MenuItem> items = new ArrayList<>(loadedItems);
+        List<MenuItem> evictedItems = new ArrayList<>();
+
+        boolean ticking = items.stream().anyMatch(MenuItem::isTicking);
+        BitSet shownPages = getShownPages();
+
+        synchronized (cachedPages) {
+            cachedPages.put(page, items);
+            tickingPages.set(page, ticking);
+            knownPageCount = Math.max(knownPageCount, items.size() < itemSlots.length ? page + 1 : page + 2);
+
+            // Pages on screen are read every tick, so they are kept
+            // even if that makes the cache go over its size
+            Iterator<Map.Entry<Integer, List<MenuItem>>> pages = cachedPages.entrySet().iterator();
+            while (cachedPages.size() > maxCachedPages && pages.hasNext()) {
+                Map.Entry<Integer, List<MenuItem>> cachedPage = pages.next();
+                if(cachedPage.getKey() == page || shownPages.get(cachedPage.getKey())) continue;
+
+                evictedItems.addAll(cachedPage.getValue());
+                tickingPages.clear(cachedPage.getKey());
+                pages.remove();
+            }
+        }
+
+        items.forEach(this::holdItem);
+        evictedItems.forEach(this::releaseItem);
+        return items;
+    }
+
+    private void invalidatePages() {
+        List<MenuItem> evictedItems = new ArrayList<>();
+        synchronized (cachedPages) {
+            cachedPages.values().forEach(evictedItems::addAll);
+            cachedPages.clear();
+            tickingPages.clear();
+            loadingPages.clear();
+            failedPages.clear();
+            knownPageCount = 1;
+            sourceSize = null;
+            loadingSize = false;
+            pageGeneration++;
+        }
+        evictedItems.forEach(this::releaseItem);
+    }
+
+    private void removePageSource() {
+        if(pageSource == null) return;
+        pageSource = null;
+        invalidatePages();
+    }
+
+    /**
+     * Mark the pages changed from an index of the
+     * pageable items as required update. Menus in
+     * the previous pages only update the buttons to
+     * change the page, as the page count may change.
+     *
+     * @param index the changed index.
+     * @param item the added or removed item.
+     * @param added if the item was added.
+     */
+    private void requirePageableUpdate(int index, MenuItem item, boolean added) {
+        requirePageableUpdate(this, index, item, added);
+        mirrorMenus.values().forEach(menu -> requirePageableUpdate(menu, index, item, added));
+    }
+
+    private static void requirePageableUpdate(PageableChestMenu menu, int index, MenuItem item, boolean added) {
+        // Menus with a view display the item in another position
+        if(menu.hasView()) {
+            index = added ? menu.addToView(item, index) : menu.removeFromView(item);
+            if(index < 0) return;
+        }
+
+        int firstPage = index / menu.itemSlots.length;
+        if(menu.page >= firstPage) menu.requireLocalUpdate();
+        else {
+            AbstractMap.SimpleEntry<Integer, MenuItem> nextPageItem = menu.getNextPageEntry();
+            AbstractMap.SimpleEntry<Integer, MenuItem> previousPageItem = menu.getPreviousPageEntry();
+            if(nextPageItem != null) menu.requireLocalUpdate(nextPageItem.getKey(), false);
+            if(previousPageItem != null) menu.requireLocalUpdate(previousPageItem.getKey(), false);
+        }
+    }
+
+    private void requireLocalUpdate() {
+        super.requireUpdate(null, false);
+    }
+
+    private boolean hasView() {
+        PageableChestMenu root = fatherMenu == null ? this : fatherMenu;
+        return (viewSorter != null || viewFilter != null) && root.pageSource == null;
+    }
+
+    private MenuItem getDisplayedItem(int index) {
+        if(!hasView()) return getPageableItem(index);
+
+        List<MenuItem> items = getViewItems();
+        return index < items.size() ? items.get(index) : null;
+    }
+
+    private int getViewPageCount() {
+        return Math.max(1, (getViewItems().size() + itemSlots.length - 1) / itemSlots.length);
+    }
+
+    private List<MenuItem> getViewItems() {
+        if(viewItems == null) {
+            List<MenuItem> items = new ArrayList<>();
+            for (MenuItem item : pageableItems) {
+                if(viewFilter == null || viewFilter.test(item)) items.add(item);
+            }
+            if(viewSorter != null) items.sort(viewSorter);
+            viewItems = items;
+        }
+
+        return viewItems;
+    }
+
+    /**
+     * Adds a new pageable item to the view of this menu.
+     *
+     * @param item the added item.
+     * @param index the index of the item in the pageable items.
+     * @return the position of the item in the view, zero if the
+     * view will be built again, or -1 if it is not displayed.
+     */
+    private int addToView(MenuItem item, int index) {
+        if(viewItems == null) return 0;
+        if(viewFilter != null && !viewFilter.test(item)) return -1;
+
+        int position;
+        if(viewSorter != null) {
+            // Insert after the equal items, like a stable sort
+            int low = 0;
+            int high = viewItems.size();
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if(viewSorter.compare(viewItems.get(middle), item) <= 0) low = middle + 1;
+                else high = middle;
+            }
+            position = low;
+        } else if(index == pageableItems.size() - 1) {
+            position = viewItems.size();
+        } else {
+            viewItems = null;
+            return 0;
+        }
+
+        viewItems.add(position, item);
+        return position;
+    }
+
+    /**
+     * Removes a pageable item from the view of this menu.
+     *
+     * @param item the removed item.
+     * @return the position the item had in the view, zero if
+     * the view will be built again, or -1 if it was not displayed.
+     */
+    private int removeFromView(MenuItem item) {
+        if(viewItems == null) return 0;
+
+        int start = 0;
+        if(viewSorter != null) {
+            // Start from the first item equal to the removed one
+            int high = viewItems.size();
+            while (start < high) {
+                int middle = (start + high) >>> 1;
+                if(viewSorter.compare(viewItems.get(middle), item) < 0) start = middle + 1;
+                else high = middle;
+            }
+        }
+
+        for (int i = start; i < viewItems.size(); i++) {
+            if(viewItems.get(i) == item) {
+                viewItems.remove(i);
+                return i;
+            }
+        }
+
+        // The item was sorted again since it was added
+        for (int i = 0; i < start; i++) {
+            if(viewItems.get(i) == item) {
+                viewItems.remove(i);
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private void invalidateViews() {
+        this.viewItems = null;
+        mirrorMenus.values().forEach(menu -> menu.viewItems = null);
+    }
+
+    private void updateViewTickingItems() {
+        int start = page * itemSlots.length;
+        for (int position = 0; position < itemSlots.length; position++) {
+            MenuItem item = getDisplayedItem(start + position);
+            if(item == null) break;
+            if(item.isTicking()) requireLocalUpdate(itemSlots[position], item.update());
+        }
+    }
+
+    private void requireViewItemUpdate(MenuItem item) {
+        if(viewItems == null) return;
+
+        int start = page * itemSlots.length;
+        int end = Math.min(start + itemSlots.length, viewItems.size());
+        for (int index = start; index < end; index++) {
+            if(viewItems.get(index) == item) requireLocalUpdate(itemSlots[index - start], false);
+        }
+    }
+
+    private void requireLocalUpdate(int slot, boolean force) {
+        super.requireUpdate(slot, force);
+    }
+
+    private void openMenu(Player player) {
+        super.open(player);
+    }
+
+    private AbstractMap.SimpleEntry<Integer, MenuItem> getNextPageEntry() {
+        return fatherMenu == null ? nextPageItem : fatherMenu.nextPageItem;
+    }
+
+    private AbstractMap.SimpleEntry<Integer, MenuItem> getPreviousPageEntry() {
+        return fatherMenu == null ? previousPageItem : fatherMenu.previousPageItem;
+    }
+
     //Override global actions for mirrored menus
     @Override
     public Consumer<InventoryOpenEvent> getOnOpen() {
@@ -385,6 +1288,11 @@ public class PageableChestMenu extends ChestMenu {
         return this.fatherMenu == null ? super.getOnClose() : this.fatherMenu.getOnClose();
     }
 
+    @Override
+    public LongConsumer getOnOpenLatency() {
+        return this.fatherMenu == null ? super.getOnOpenLatency() : this.fatherMenu.getOnOpenLatency();
+    }
+
     @Override
     public Consumer<InventoryClickEvent> getOnClick() {
         return this.fatherMenu == null ? super.getOnClick() : this.fatherMenu.getOnClick();
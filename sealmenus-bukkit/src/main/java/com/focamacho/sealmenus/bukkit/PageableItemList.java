@@ -0,0 +1,275 @@
+package com.focamacho.sealmenus.bukkit;
+
+import com.focamacho.sealmenus.bukkit.item.MenuItem;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * The list of pageable items of a menu.
+ *
+ * The items are kept in small chunks, so inserting
+ * or removing an item only shifts the items of its
+ * chunk, and each item is indexed by identity to
+ * find its position without comparing the items.
+ *
+ * Like the menus, this list must only be
+ * modified in the main thread.
+ */
+final class PageableItemList extends AbstractList<MenuItem> implements RandomAccess {
+
+    private static final int CHUNK_SIZE = 64;
+
+    private final List<Chunk> chunks = new ArrayList<>();
+    private int size = 0;
+
+    // Amount of chunks with a valid start index, the
+    // next ones are recalculated when needed
+    private int validChunks = 0;
+
+    // Chunk of each item, or null for items that appear more
+    // than once, which are found by going through the chunks
+    private final Map<MenuItem, Entry> entries = new IdentityHashMap<>();
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public MenuItem get(int index) {
+        if(index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+
+        Chunk chunk = chunks.get(chunkAt(index));
+        return chunk.items.get(index - chunk.start);
+    }
+
+    @Override
+    public void add(int index, MenuItem item) {
+        if(index < 0 || index > size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+
+        int chunkIndex;
+        Chunk chunk;
+        if(index == size) {
+            // Appending only needs the last chunk
+            chunkIndex = chunks.size() - 1;
+            if(chunkIndex < 0 || chunks.get(chunkIndex).items.size() >= CHUNK_SIZE) {
+                chunks.add(new Chunk());
+                chunkIndex++;
+            }
+            chunk = chunks.get(chunkIndex);
+            chunk.items.add(item);
+        } else {
+            chunkIndex = chunkAt(index);
+            chunk = chunks.get(chunkIndex);
+            chunk.items.add(index - chunk.start, item);
+        }
+        if(item.isTicking()) chunk.tickingItems++;
+
+        Entry entry = entries.get(item);
+        if(entry == null) entries.put(item, new Entry(chunk));
+        else {
+            entry.count++;
+            entry.chunk = null;
+        }
+
+        if(chunk.items.size() > CHUNK_SIZE) split(chunkIndex);
+
+        validChunks = Math.min(validChunks, chunkIndex + 1);
+        size++;
+        modCount++;
+    }
+
+    @Override
+    public MenuItem remove(int index) {
+        if(index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+
+        int chunkIndex = chunkAt(index);
+        Chunk chunk = chunks.get(chunkIndex);
+        MenuItem item = chunk.items.remove(index - chunk.start);
+        if(item.isTicking()) chunk.tickingItems--;
+
+        if(chunk.items.isEmpty()) {
+            chunks.remove(chunkIndex);
+            validChunks = Math.min(validChunks, chunkIndex);
+        } else validChunks = Math.min(validChunks, chunkIndex + 1);
+
+        Entry entry = entries.get(item);
+        if(--entry.count == 0) entries.remove(item);
+        else entry.chunk = null;
+
+        size--;
+        modCount++;
+        return item;
+    }
+
+    @Override
+    public MenuItem set(int index, MenuItem item) {
+        if(index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+
+        Chunk chunk = chunks.get(chunkAt(index));
+        MenuItem oldItem = chunk.items.set(index - chunk.start, item);
+        if(oldItem == item) return oldItem;
+
+        if(oldItem.isTicking()) chunk.tickingItems--;
+        if(item.isTicking()) chunk.tickingItems++;
+
+        Entry oldEntry = entries.get(oldItem);
+        if(--oldEntry.count == 0) entries.remove(oldItem);
+        else oldEntry.chunk = null;
+
+        Entry entry = entries.get(item);
+        if(entry == null) entries.put(item, new Entry(chunk));
+        else {
+            entry.count++;
+            entry.chunk = null;
+        }
+
+        return oldItem;
+    }
+
+    @Override
+    public void clear() {
+        chunks.clear();
+        entries.clear();
+        size = 0;
+        validChunks = 0;
+        modCount++;
+    }
+
+    /**
+     * Returns the index of the first occurrence of
+     * an item, comparing the items by identity.
+     *
+     * @param item the item to find.
+     * @return the index of the item, or -1 if
+     * it is not present in this list.
+     */
+    int indexOfIdentity(MenuItem item) {
+        Entry entry = entries.get(item);
+        if(entry == null) return -1;
+
+        if(entry.chunk != null) {
+            updateStarts();
+            return entry.chunk.start + entry.chunk.indexOf(item);
+        }
+
+        updateStarts();
+        for (Chunk chunk : chunks) {
+            int position = chunk.indexOf(item);
+            if(position >= 0) {
+                if(entry.count == 1) entry.chunk = chunk;
+                return chunk.start + position;
+            }
+        }
+
+        return -1;
+    }
+
+    @Override
+    public int indexOf(Object item) {
+        return item instanceof MenuItem ? indexOfIdentity((MenuItem) item) : -1;
+    }
+
+    @Override
+    public boolean contains(Object item) {
+        return item instanceof MenuItem && entries.containsKey(item);
+    }
+
+    /**
+     * Returns if any item in a range of this
+     * list needs to be updated every tick. The
+     * items are checked by chunk, so items close
+     * to the range may also be counted.
+     *
+     * @param from the first index of the range.
+     * @param to the index after the range.
+     * @return true if the range may have
+     * ticking items.
+     */
+    boolean hasTickingItems(int from, int to) {
+        if(from >= size) return false;
+
+        for (int i = chunkAt(from); i < chunks.size() && chunks.get(i).start < to; i++) {
+            if(chunks.get(i).tickingItems > 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the index of the chunk
+     * containing an index of this list.
+     */
+    private int chunkAt(int index) {
+        updateStarts();
+
+        int low = 0;
+        int high = chunks.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if(chunks.get(middle).start <= index) low = middle;
+            else high = middle - 1;
+        }
+
+        return low;
+    }
+
+    private void updateStarts() {
+        for (int i = validChunks; i < chunks.size(); i++) {
+            Chunk chunk = chunks.get(i);
+            chunk.start = i == 0 ? 0 : chunks.get(i - 1).start + chunks.get(i - 1).items.size();
+        }
+        validChunks = chunks.size();
+    }
+
+    private void split(int chunkIndex) {
+        Chunk chunk = chunks.get(chunkIndex);
+        Chunk next = new Chunk();
+
+        List<MenuItem> moved = chunk.items.subList(chunk.items.size() / 2, chunk.items.size());
+        next.items.addAll(moved);
+        moved.clear();
+        chunks.add(chunkIndex + 1, next);
+
+        for (MenuItem item : next.items) {
+            if(item.isTicking()) next.tickingItems++;
+        }
+        chunk.tickingItems -= next.tickingItems;
+
+        for (MenuItem item : next.items) {
+            Entry entry = entries.get(item);
+            if(entry != null && entry.chunk == chunk) entry.chunk = next;
+        }
+    }
+
+    private static final class Chunk {
+
+        private final ArrayList<MenuItem> items = new ArrayList<>(CHUNK_SIZE + 1);
+        private int start = 0;
+        private int tickingItems = 0;
+
+        private int indexOf(MenuItem item) {
+            for (int i = 0; i < items.size(); i++) {
+                if(items.get(i) == item) return i;
+            }
+            return -1;
+        }
+
+    }
+
+    private static final class Entry {
+
+        private Chunk chunk;
+        private int count = 1;
+
+        private Entry(Chunk chunk) {
+            this.chunk = chunk;
+        }
+
+    }
+
+}
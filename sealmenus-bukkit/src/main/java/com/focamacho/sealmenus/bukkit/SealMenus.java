@@ -3,12 +3,20 @@ package com.focamacho.sealmenus.bukkit;
 import com.google.common.collect.Maps;
 import org.bukkit.Bukkit;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitTask;
 
 import java.util.Map;
 
 public final class SealMenus {
 
     static final Map<JavaPlugin, ChestMenu.Listener> registeredListeners = Maps.newHashMap();
+    static final Map<JavaPlugin, MenuTicker> registeredTickers = Maps.newHashMap();
+
+    // Server ticks counted by a task of one of the plugins
+    // using the menus, as Bukkit does not expose them
+    private static long currentTick = 0;
+    private static JavaPlugin clockPlugin = null;
+    private static BukkitTask clockTask = null;
 
     /**
      * Creates a chest menu.
@@ -43,12 +51,36 @@ public final class SealMenus {
         return new PageableChestMenu(title, rows, itemSlots, plugin);
     }
 
+    /**
+     * Returns the amount of server ticks counted
+     * since the first menu was created.
+     *
+     * @return the current tick.
+     */
+    public static long getCurrentTick() {
+        return currentTick;
+    }
+
+    /**
+     * Start counting the server ticks with a task
+     * of a plugin, if they are not being counted
+     * by an enabled plugin already.
+     */
+    static void startClock(JavaPlugin plugin) {
+        if(clockTask != null && !clockTask.isCancelled() && clockPlugin.isEnabled()) return;
+
+        clockPlugin = plugin;
+        clockTask = Bukkit.getScheduler().runTaskTimer(plugin, () -> currentTick++, 1, 1);
+    }
+
     private static void registerListener(JavaPlugin plugin) {
         if(!registeredListeners.containsKey(plugin)) {
             ChestMenu.Listener listener = new ChestMenu.Listener(plugin);
             Bukkit.getPluginManager().registerEvents(listener, plugin);
             registeredListeners.put(plugin, listener);
+            registeredTickers.put(plugin, new MenuTicker(plugin));
         }
+        startClock(plugin);
     }
 
 }
@@ -0,0 +1,88 @@
+package com.focamacho.sealmenus.bukkit;
+
+import org.bukkit.Bukkit;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.plugin.java.JavaPlugin;
+
+/**
+ * Collects the changes made to the slots
+ * of an inventory and applies all of them
+ * in a single task on the main thread.
+ *
+ * Multiple writes to the same slot before
+ * the flush only keep the last ItemStack.
+ *
+ * When many slots change at once, like in
+ * a full update, all of them are applied
+ * with a single Inventory#setContents.
+ */
+final class SlotWriter {
+
+    // Amount of changed slots from which the
+    // contents are replaced all at once
+    private static final int BULK_WRITE_THRESHOLD = 9;
+
+    private final JavaPlugin plugin;
+    private final Inventory inventory;
+
+    private final ItemStack[] pendingStacks;
+    private long pendingSlots = 0;
+    private boolean flushScheduled = false;
+
+    SlotWriter(JavaPlugin plugin, Inventory inventory) {
+        this.plugin = plugin;
+        this.inventory = inventory;
+        this.pendingStacks = new ItemStack[inventory.getSize()];
+    }
+
+    /**
+     * Queue a change for a slot.
+     *
+     * @param slot the slot to change.
+     * @param stack the ItemStack to display, or
+     *              null to clear the slot.
+     */
+    synchronized void write(int slot, ItemStack stack) {
+        pendingStacks[slot] = stack;
+        pendingSlots |= 1L << slot;
+
+        if(!flushScheduled) {
+            flushScheduled = true;
+            Bukkit.getScheduler().runTask(this.plugin, this::flush);
+        }
+    }
+
+    /**
+     * Apply all queued changes to the inventory.
+     * Must be called from the main thread.
+     */
+    synchronized void flush() {
+        flushScheduled = false;
+
+        if(Long.bitCount(pendingSlots) >= BULK_WRITE_THRESHOLD) {
+            ItemStack[] contents = inventory.getContents();
+            for(long slots = pendingSlots; slots != 0; slots &= slots - 1) {
+                int slot = Long.numberOfTrailingZeros(slots);
+                contents[slot] = pendingStacks[slot];
+                pendingStacks[slot] = null;
+            }
+
+            inventory.setContents(contents);
+            pendingSlots = 0;
+            return;
+        }
+
+        for(long slots = pendingSlots; slots != 0; slots &= slots - 1) {
+            int slot = Long.numberOfTrailingZeros(slots);
+            ItemStack stack = pendingStacks[slot];
+            pendingStacks[slot] = null;
+
+            if(stack != null) inventory.setItem(slot, stack);
+            else if(inventory.getItem(slot) != null) inventory.clear(slot);
+        }
+
+        pendingSlots = 0;
+    }
+
+}
@@ -0,0 +1,29 @@
+package com.focamacho.sealmenus.bukkit.item;
+
+import com.focamacho.sealmenus.bukkit.ChestMenu;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * An action performed outside of the main thread
+ * when a menu is clicked.
+ *
+ * The returned edit is applied to the menu in the
+ * main thread once the future completes. Nothing
+ * is applied if the future completes exceptionally,
+ * and the error is logged by the plugin of the menu.
+ */
+@FunctionalInterface
+public interface AsyncClickAction {
+
+    /**
+     * Performs this action.
+     *
+     * @param click the click that triggered it.
+     * @return a future of the edit to apply to the
+     * menu, or null to not edit the menu.
+     */
+    CompletableFuture<? extends Consumer<ChestMenu>> apply(ClickSnapshot click);
+
+}
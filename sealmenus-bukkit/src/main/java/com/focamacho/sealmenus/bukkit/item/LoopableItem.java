@@ -1,9 +1,11 @@
 package com.focamacho.sealmenus.bukkit.item;
 
+import com.focamacho.sealmenus.bukkit.SealMenus;
 import lombok.Getter;
 import lombok.NonNull;
 import org.bukkit.inventory.ItemStack;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -16,22 +18,32 @@ import java.util.stream.Collectors;
  * through a list of ItemStacks and display
  * a different item after a pre-set amount of
  * time.
+ *
+ * Synced items derive their frame from the
+ * server clock, so every synced item with the
+ * same frames and delay displays the same frame.
  */
 public class LoopableItem extends MenuItem {
 
+    // The frames are never modified, so
+    // copies of this item share the same list
     @Getter private final List<ItemStack> items;
     private final int totalTicks;
+    @Getter private final boolean synced;
 
+    private int frame = 0;
     private int tickCount;
+    private long lastTick = -1;
 
     /**
      * Private constructor. Use the static method LoopableItem#create.
      */
-    private LoopableItem(@NonNull List<ItemStack> items, int ticks) {
+    private LoopableItem(@NonNull List<ItemStack> items, int ticks, boolean synced) {
         super(items.get(0));
         this.items = items;
-        this.totalTicks = ticks;
-        this.tickCount = ticks;
+        this.totalTicks = Math.max(1, ticks);
+        this.synced = synced;
+        this.tickCount = this.totalTicks;
     }
 
     /**
@@ -42,37 +54,75 @@ public class LoopableItem extends MenuItem {
      * @return the created ClickableItem.
      */
     public static LoopableItem create(@NonNull List<ItemStack> items, int ticks) {
-        return new LoopableItem(items, ticks);
+        return create(items, ticks, false);
+    }
+
+    /**
+     * Creates a loopable item.
+     * @param items the item to be displayed in the menu.
+     * @param ticks the amount of ticks to wait before changing
+     *              the display item to the next one.
+     * @param synced if the frame should be derived from the
+     *               server clock instead of this item's own
+     *               counter.
+     * @return the created ClickableItem.
+     */
+    public static LoopableItem create(@NonNull List<ItemStack> items, int ticks, boolean synced) {
+        if(items.isEmpty()) throw new IllegalArgumentException("A LoopableItem requires at least one item.");
+        List<ItemStack> frames = Collections.unmodifiableList(items.stream().map(ItemStack::clone).collect(Collectors.toList()));
+        return new LoopableItem(frames, ticks, synced);
     }
 
     @Override
     public boolean update() {
-        tickCount--;
-        if(tickCount <= 0) {
-            tickCount = totalTicks;
+        if(synced) {
+            int syncedFrame = (int) ((currentTick() / totalTicks) % items.size());
+            if(syncedFrame == frame) return false;
+            setFrame(syncedFrame);
+            return true;
+        }
 
-            int itemIndex = items.indexOf(getItem()) + 1;
-            if(itemIndex >= items.size()) setItem(items.get(0));
-            else setItem(items.get(itemIndex));
+        // Items are not updated while they are not visible, so the
+        // elapsed ticks are used to jump to the frame they should be in
+        long currentTick = currentTick();
+        if(lastTick < 0) lastTick = currentTick;
+        long remainingTicks = tickCount - (currentTick - lastTick);
+        lastTick = currentTick;
 
-            return true;
+        if(remainingTicks > 0) {
+            tickCount = (int) remainingTicks;
+            return false;
         }
 
-        return false;
+        long overdueTicks = -remainingTicks;
+        int frames = (int) ((1 + overdueTicks / totalTicks) % items.size());
+        tickCount = (int) (totalTicks - overdueTicks % totalTicks);
+
+        setFrame((frame + frames) % items.size());
+        return true;
+    }
+
+    private void setFrame(int frame) {
+        // The menus are updated through the return
+        // value, so the watchers are not notified here
+        this.frame = frame;
+        this.item = items.get(frame);
+        this.version++;
+    }
+
+    @Override
+    public boolean isTicking() {
+        return true;
     }
 
     @Override
     public MenuItem copy() {
-        return create(this.items.stream().map(ItemStack::clone).collect(Collectors.toList()), this.totalTicks)
-                .setOnPrimary(this.getOnPrimary())
-                .setOnMiddle(this.getOnMiddle())
-                .setOnSecondary(this.getOnSecondary())
-                .setOnShiftPrimary(this.getOnShiftPrimary())
-                .setOnDouble(this.getOnDouble())
-                .setOnDrop(this.getOnDrop())
-                .setOnNumber(this.getOnNumber())
-                .setOnShiftSecondary(this.getOnShiftSecondary())
-                .setOnDropAll(this.getOnDropAll());
+        return new LoopableItem(this.items, this.totalTicks, this.synced)
+                .copyActions(this);
+    }
+
+    private static long currentTick() {
+        return SealMenus.getCurrentTick();
     }
 
 }
@@ -1,14 +1,16 @@
 package com.focamacho.sealmenus.sponge;
 
-import com.focamacho.sealmenus.sponge.item.ClickableItem;
+import com.focamacho.sealmenus.sponge.item.AsyncClickAction;
+import com.focamacho.sealmenus.sponge.item.ClickAction;
+import com.focamacho.sealmenus.sponge.item.ClickSnapshot;
 import com.focamacho.sealmenus.sponge.item.MenuItem;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Sets;
-import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.experimental.Accessors;
+import org.spongepowered.api.Sponge;
 import org.spongepowered.api.entity.living.player.Player;
+import org.spongepowered.api.event.Order;
 import org.spongepowered.api.event.item.inventory.ClickInventoryEvent;
 import org.spongepowered.api.event.item.inventory.InteractInventoryEvent;
 import org.spongepowered.api.item.inventory.Inventory;
@@ -21,14 +23,45 @@ import org.spongepowered.api.scheduler.Task;
 import org.spongepowered.api.text.Text;
 
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 
 @SuppressWarnings({"unused", "UnusedReturnValue"})
 @Accessors(chain = true)
 public class ChestMenu {
 
-    private static final MenuItem dummyItem = ClickableItem.create(ItemStack.empty());
+    private static final int CLICK_ACTION_BIT = 1 << ClickAction.values().length;
+
+    // Action of the kinds of clicks without one, never counted in the mask
+    private static final Consumer<?> NO_ACTION = (click) -> {};
+
+    // Kind of click of each event class, resolved once per class
+    private static final ClassValue<Optional<ClickAction>> CLICK_ACTIONS = new ClassValue<Optional<ClickAction>>() {
+        @Override
+        protected Optional<ClickAction> computeValue(Class<?> type) {
+            if(ClickInventoryEvent.Double.class.isAssignableFrom(type)) return Optional.of(ClickAction.DOUBLE);
+            if(ClickInventoryEvent.Shift.Primary.class.isAssignableFrom(type)) return Optional.of(ClickAction.SHIFT_PRIMARY);
+            if(ClickInventoryEvent.Shift.Secondary.class.isAssignableFrom(type)) return Optional.of(ClickAction.SHIFT_SECONDARY);
+            if(ClickInventoryEvent.Primary.class.isAssignableFrom(type)) return Optional.of(ClickAction.PRIMARY);
+            if(ClickInventoryEvent.Middle.class.isAssignableFrom(type)) return Optional.of(ClickAction.MIDDLE);
+            if(ClickInventoryEvent.Secondary.class.isAssignableFrom(type)) return Optional.of(ClickAction.SECONDARY);
+            if(ClickInventoryEvent.Drop.Full.class.isAssignableFrom(type)) return Optional.of(ClickAction.DROP_ALL);
+            if(ClickInventoryEvent.Drop.class.isAssignableFrom(type)) return Optional.of(ClickAction.DROP);
+            if(ClickInventoryEvent.NumberPress.class.isAssignableFrom(type)) return Optional.of(ClickAction.NUMBER);
+            return Optional.empty();
+        }
+    };
+
+    // Depth of the inventory events being handled, of any
+    // inventory, menus are only opened right away outside of them
+    private static int handlingEvents = 0;
 
     //Base properties
     @Getter private final String title;
@@ -38,25 +71,66 @@ public class ChestMenu {
     //Global actions
     @Getter @Setter private Consumer<InteractInventoryEvent.Open> onOpen = (interact) -> {};
     @Getter @Setter private Consumer<InteractInventoryEvent.Close> onClose = (interact) -> {};
-    @Getter @Setter private Consumer<ClickInventoryEvent> onClick = (click) -> {};
-    @Getter @Setter private Consumer<ClickInventoryEvent.Primary> onPrimary = (click) -> {};
-    @Getter @Setter private Consumer<ClickInventoryEvent.Middle> onMiddle = (click) -> {};
-    @Getter @Setter private Consumer<ClickInventoryEvent.Secondary> onSecondary = (click) -> {};
-    @Getter @Setter private Consumer<ClickInventoryEvent.Shift.Primary> onShiftPrimary = (click) -> {};
-    @Getter @Setter private Consumer<ClickInventoryEvent.Double> onDouble = (click) -> {};
-    @Getter @Setter private Consumer<ClickInventoryEvent.Drop.Single> onDrop = (click) -> {};
-    @Getter @Setter private Consumer<ClickInventoryEvent.Shift.Secondary> onShiftSecondary = (click) -> {};
-    @Getter @Setter private Consumer<ClickInventoryEvent.Drop.Full> onDropAll = (click) -> {};
-    @Getter @Setter private Consumer<ClickInventoryEvent.NumberPress> onNumber = (click) -> {};
-
-    //Items
-    protected Map<Integer, MenuItem> items = new ConcurrentHashMap<>();
+    // Mask of the kinds of clicks with an action
+    private int actionMask = 0;
+    @Getter private Consumer<ClickInventoryEvent> onClick = noAction();
+    @Getter private Consumer<ClickInventoryEvent.Primary> onPrimary = noAction();
+    @Getter private Consumer<ClickInventoryEvent.Middle> onMiddle = noAction();
+    @Getter private Consumer<ClickInventoryEvent.Secondary> onSecondary = noAction();
+    @Getter private Consumer<ClickInventoryEvent.Shift.Primary> onShiftPrimary = noAction();
+    @Getter private Consumer<ClickInventoryEvent.Double> onDouble = noAction();
+    @Getter private Consumer<ClickInventoryEvent.Drop.Single> onDrop = noAction();
+    @Getter private Consumer<ClickInventoryEvent.Shift.Secondary> onShiftSecondary = noAction();
+    @Getter private Consumer<ClickInventoryEvent.Drop.Full> onDropAll = noAction();
+    @Getter private Consumer<ClickInventoryEvent.NumberPress> onNumber = noAction();
+
+    //Time from the call to open until the menu is shown, in nanoseconds
+    @Getter private LongConsumer onOpenLatency = (nanos) -> {};
+
+    //Clicks allowed for each player
+    private final ClickLimiter clickLimiter = new ClickLimiter();
+
+    //Actions performed outside of the main thread, indexed by ClickAction
+    private final AsyncClickAction[] asyncActions = new AsyncClickAction[ClickAction.values().length];
+    private int asyncActionMask = 0;
+    protected Executor clickExecutor = null;
+
+    //Items, indexed by slot
+    protected AtomicReferenceArray<MenuItem> items;
+    protected long tickingSlots = 0;
+    // Items may change from any thread, the menu is
+    // only updated from the main thread
+    protected final Consumer<MenuItem> itemWatcher = item -> {
+        if(Sponge.getServer().isMainThread()) onItemChange(item);
+        else enqueueEdit(() -> onItemChange(item));
+    };
+    // Items are only watched while the menu has viewers, so
+    // items shared with other menus don't keep this one in memory
+    private boolean watchingItems = false;
 
     //Sponge Inventory
     @Getter protected Inventory inventory;
+    private SlotWriter slotWriter;
+    // Item and version last written to each slot, so
+    // slots that didn't change are not written again
+    private final MenuItem[] renderedItems;
+    private final int[] renderedVersions;
     protected List<Player> playersViewing = Lists.newArrayList();
-    protected final Set<Integer> slotsRequiringUpdate = Sets.newHashSet();
-    @Getter(AccessLevel.PROTECTED) @Setter(AccessLevel.PROTECTED) private Task updateItemsTask = null;
+    // Bitmask of the slots waiting for an update, one bit per slot
+    protected long slotsRequiringUpdate = 0;
+    // Bitmask of the slots written even if their item did not change
+    protected long slotsForcingUpdate = 0;
+    protected boolean requiresFullUpdate = false;
+    // Depth of the edits being applied, the slots are
+    // only updated once the outermost edit ends
+    private int editDepth = 0;
+
+    //Contents being loaded for the players opening this menu
+    private final Map<UUID, CompletableFuture<? extends Consumer<ChestMenu>>> pendingContents = new ConcurrentHashMap<>();
+
+    //Edits queued from any thread, applied in the main thread
+    private final Queue<Runnable> queuedEdits = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean applyScheduled = new AtomicBoolean(false);
 
     protected ChestMenu(String title, int rows, Object plugin) {
         if(rows <= 0 || rows > 6) throw new IllegalArgumentException("The number of rows for a menu must be >= 1 && <= 6.");
@@ -64,6 +138,9 @@ public class ChestMenu {
         this.title = Objects.requireNonNull(title);
         this.rows = rows;
         this.plugin = Objects.requireNonNull(plugin);
+        this.items = new AtomicReferenceArray<>(rows * 9);
+        this.renderedItems = new MenuItem[rows * 9];
+        this.renderedVersions = new int[rows * 9];
     }
 
     /**
@@ -75,7 +152,13 @@ public class ChestMenu {
     public ChestMenu addItem(MenuItem item, int slot) {
         if(slot < 0 || slot >= this.rows * 9) throw new IllegalArgumentException("The slot can't be less than zero or greater than the inventory size.");
 
-        items.put(slot, item);
+        MenuItem oldItem = items.getAndSet(slot, item);
+        if(item.isTicking()) tickingSlots |= 1L << slot;
+        else tickingSlots &= ~(1L << slot);
+
+        holdItem(item);
+        if(oldItem != null && oldItem != item) releaseItem(oldItem);
+
         requireUpdate(slot);
         return this;
     }
@@ -86,11 +169,27 @@ public class ChestMenu {
      * @return this menu.
      */
     public ChestMenu removeItem(int slot) {
-        this.items.remove(slot);
+        if(slot < 0 || slot >= this.rows * 9) throw new IllegalArgumentException("The slot can't be less than zero or greater than the inventory size.");
+
+        MenuItem oldItem = this.items.getAndSet(slot, null);
+        this.tickingSlots &= ~(1L << slot);
+        if(oldItem != null) releaseItem(oldItem);
+
         requireUpdate(slot);
         return this;
     }
 
+    /**
+     * Returns the item in the
+     * provided slot.
+     * @param slot the item slot.
+     * @return the item in the
+     * slot or null if there is no item.
+     */
+    public MenuItem getItem(int slot) {
+        return slot >= 0 && slot < items.length() ? items.get(slot) : null;
+    }
+
     /**
      * Returns the item in the
      * provided slot.
@@ -99,7 +198,7 @@ public class ChestMenu {
      * slot or null if there is no item.
      */
     public MenuItem getItem(Integer slot) {
-        return items.get(slot);
+        return slot == null ? null : getItem(slot.intValue());
     }
 
     /**
@@ -107,7 +206,14 @@ public class ChestMenu {
      * @return the items of this menu.
      */
     public Map<Integer, MenuItem> getItems() {
-        return Collections.unmodifiableMap(this.items);
+        Map<Integer, MenuItem> items = new HashMap<>();
+
+        for(int slot = 0; slot < this.items.length(); slot++) {
+            MenuItem item = this.items.get(slot);
+            if(item != null) items.put(slot, item);
+        }
+
+        return Collections.unmodifiableMap(items);
     }
 
     /**
@@ -152,6 +258,17 @@ public class ChestMenu {
         return Collections.unmodifiableMap(items);
     }
 
+    /**
+     * Check if a slot contains
+     * a menu item.
+     *
+     * @param slot the slot to check.
+     * @return if contains or not an item.
+     */
+    public boolean containsItem(int slot) {
+        return slot >= 0 && slot < items.length() && items.get(slot) != null;
+    }
+
     /**
      * Check if a slot contains
      * a menu item.
@@ -160,7 +277,7 @@ public class ChestMenu {
      * @return if contains or not an item.
      */
     public boolean containsItem(Integer slot) {
-        return slot != null && items.containsKey(slot);
+        return slot != null && containsItem(slot.intValue());
     }
 
     /**
@@ -170,9 +287,15 @@ public class ChestMenu {
      * @return this menu.
      */
     public ChestMenu setItems(Map<Integer, MenuItem> items) {
-        this.items.clear();
-        items.forEach((slot, item) -> addItem(item, slot));
-        requireUpdate(null);
+        beginEdit();
+        try {
+            removeAllItems();
+
+            items.forEach((slot, item) -> addItem(item, slot));
+            requireUpdate(null, false);
+        } finally {
+            endEdit();
+        }
         return this;
     }
 
@@ -181,16 +304,22 @@ public class ChestMenu {
      * @return this menu.
      */
     public ChestMenu clearItems() {
-        items.clear();
-        requireUpdate(null);
+        removeAllItems();
+
+        requireUpdate(null, false);
         return this;
     }
 
     /**
      * Updates the inventory with the current
-     * items of this menu.
+     * items of this menu. Every slot is written
+     * again, even if its item did not change.
      */
     public void update() {
+        updateSlots(true);
+    }
+
+    private void updateSlots(boolean force) {
         if(this.inventory == null) {
             this.inventory = Inventory.builder()
                     .of(InventoryArchetypes.CHEST)
@@ -216,91 +345,54 @@ public class ChestMenu {
                         if(slot == null) slot = -1;
                         if(slot < 9 * this.rows) {
                             ce.setCancelled(true);
-
-                            this.getOnClick().accept(ce);
-
-                            MenuItem item = getItem(slot);
-                            if(item == null) item = dummyItem;
-
-                            if(ce instanceof ClickInventoryEvent.Double) {
-                                this.getOnDouble().accept((ClickInventoryEvent.Double) ce);
-                                item.getOnDouble().accept((ClickInventoryEvent.Double) ce);
-                            } else if(ce instanceof ClickInventoryEvent.Shift.Primary) {
-                                this.getOnShiftPrimary().accept((ClickInventoryEvent.Shift.Primary) ce);
-                                item.getOnShiftPrimary().accept((ClickInventoryEvent.Shift.Primary) ce);
-                            } else if(ce instanceof ClickInventoryEvent.Shift.Secondary) {
-                                this.getOnShiftSecondary().accept((ClickInventoryEvent.Shift.Secondary) ce);
-                                item.getOnShiftSecondary().accept((ClickInventoryEvent.Shift.Secondary) ce);
-                            } else if(ce instanceof ClickInventoryEvent.Primary) {
-                                this.getOnPrimary().accept((ClickInventoryEvent.Primary) ce);
-                                item.getOnPrimary().accept((ClickInventoryEvent.Primary) ce);
-                            } else if(ce instanceof ClickInventoryEvent.Middle) {
-                                this.getOnMiddle().accept((ClickInventoryEvent.Middle) ce);
-                                item.getOnMiddle().accept((ClickInventoryEvent.Middle) ce);
-                            } else if(ce instanceof ClickInventoryEvent.Secondary) {
-                                this.getOnSecondary().accept((ClickInventoryEvent.Secondary) ce);
-                                item.getOnSecondary().accept((ClickInventoryEvent.Secondary) ce);
-                            } else if(ce instanceof ClickInventoryEvent.Drop.Full) {
-                                this.getOnDropAll().accept((ClickInventoryEvent.Drop.Full) ce);
-                                item.getOnDropAll().accept((ClickInventoryEvent.Drop.Full) ce);
-                            } else if(ce instanceof ClickInventoryEvent.Drop) {
-                                this.getOnDrop().accept((ClickInventoryEvent.Drop.Single) ce);
-                                item.getOnDrop().accept((ClickInventoryEvent.Drop.Single) ce);
-                            } else if(ce instanceof ClickInventoryEvent.NumberPress) {
-                                this.getOnNumber().accept((ClickInventoryEvent.NumberPress) ce);
-                                item.getOnNumber().accept((ClickInventoryEvent.NumberPress) ce);
-                            }
+                            handleClick(ce, slot);
                         }
                     })
                     .listener(InteractInventoryEvent.class, ie -> {
                         if(ie instanceof InteractInventoryEvent.Open) {
                             this.getOnOpen().accept((InteractInventoryEvent.Open) ie);
-                            Task.builder().execute(this::handlesUpdateItemsTask).submit(this.plugin);
+                            startTicking();
                         } else if(ie instanceof InteractInventoryEvent.Close) {
                             this.getOnClose().accept((InteractInventoryEvent.Close) ie);
-                            if(ie.getSource() instanceof Player) playersViewing.remove((Player) ie.getSource());
+                            if(ie.getSource() instanceof Player) {
+                                Player player = (Player) ie.getSource();
+                                playersViewing.remove(player);
+
+                                // Handled on the next tick, as the player
+                                // may be reopening this menu
+                                Task.builder().execute(() -> handleClose(player.getUniqueId())).submit(this.plugin);
+                            }
                         }
                     })
                     .build(this.plugin);
+            this.slotWriter = new SlotWriter(this.plugin, this.inventory, this.rows * 9);
         }
 
-        for (Inventory slot : this.inventory.slots()) {
-            Integer slotIndex = slot.getInventoryProperty(SlotIndex.class).get().getValue();
-            ItemStack slotStack = slot.peek().orElse(ItemStack.empty());
-
-            if(containsItem(slotIndex)) {
-                ItemStack stack = getItem(slotIndex).getItem();
-                if(slotStack != stack) Task.builder().execute(() -> slot.set(stack)).submit(this.plugin);
-            } else if(!slotStack.isEmpty()) {
-                Task.builder().execute(slot::clear).submit(this.plugin);
-            }
+        for (int slot = 0; slot < this.rows * 9; slot++) {
+            updateSlotStack(slot, force || (slotsForcingUpdate & 1L << slot) != 0);
         }
 
-        slotsRequiringUpdate.clear();
+        slotsRequiringUpdate = 0;
+        slotsForcingUpdate = 0;
+        requiresFullUpdate = false;
     }
 
     /**
      * Updates a specific slot of
-     * this menu.
+     * this menu. The slot is written again,
+     * even if its item did not change.
      *
      * @param slot the slot to update.
      */
     public void update(int slot) {
-        if(this.inventory == null) update();
-
-        for (Inventory inventorySlot : this.inventory.slots()) {
-            Integer slotIndex = inventorySlot.getInventoryProperty(SlotIndex.class).get().getValue();
-            if(Objects.equals(slot, slotIndex)) {
-                if(containsItem(slot)) {
-                    ItemStack stack = getItem(slot).getItem();
-                    if (inventorySlot.peek().orElse(ItemStack.empty()) != stack)
-                        Task.builder().execute(() -> inventorySlot.set(stack)).submit(this.plugin);
-                } else Task.builder().execute(inventorySlot::clear).submit(this.plugin);
-                break;
-            }
-        }
+        updateSlot(slot, true);
+    }
 
-        slotsRequiringUpdate.remove(slot);
+    private void updateSlot(int slot, boolean force) {
+        if(this.inventory == null) updateSlots(false);
+        updateSlotStack(slot, force || (slotsForcingUpdate & 1L << slot) != 0);
+        slotsRequiringUpdate &= ~(1L << slot);
+        slotsForcingUpdate &= ~(1L << slot);
     }
 
     /**
@@ -308,36 +400,185 @@ public class ChestMenu {
      * Slots are only updated if there is
      * a player using the inventory, otherwise
      * it will only be updated the next time a player
-     * opens it.
+     * opens it. The slot is written again, even
+     * if its item did not change.
      *
      * @param slot the slot to mark. Can be null
      *             to require an update for the
      *             entire inventory.
      */
     public void requireUpdate(Integer slot) {
+        requireUpdate(slot, true);
+    }
+
+    /**
+     * Mark a slot as required update. Unless forced,
+     * the slot is only written if its item, or the
+     * version of the item, changed since it was
+     * last written.
+     *
+     * @param slot the slot to mark, or null
+     *             for the entire inventory.
+     * @param force if the slot should be written
+     *              even if its item did not change.
+     */
+    protected void requireUpdate(Integer slot, boolean force) {
         if(this.inventory != null) {
-            if(hasViewers())
-                if(slot == null) update();
-                else update(slot);
-            else this.slotsRequiringUpdate.add(slot);
+            if(hasViewers() && !isEditing())
+                if(slot == null) updateSlots(force);
+                else updateSlot(slot, force);
+            else {
+                if(slot == null) this.requiresFullUpdate = true;
+                else this.slotsRequiringUpdate |= 1L << slot;
+                if(force) this.slotsForcingUpdate |= slot == null ? -1L : 1L << slot;
+            }
         }
     }
 
     /**
      * Open this menu for a player.
      *
+     * The menu is opened right away when called from
+     * the main thread. When called from other threads,
+     * or from inside an inventory event, where opening
+     * an inventory is not safe, it is opened in the
+     * next tick instead.
+     *
      * @param player the desired player.
      */
     public void open(Player player) {
         if(this.inventory == null) update();
 
-        Task.builder().execute(() -> {
-            if(slotsRequiringUpdate.size() > 0)
-                if(slotsRequiringUpdate.contains(null)) update();
-                else new HashSet<>(slotsRequiringUpdate).forEach(this::update);
-            player.closeInventory();
-            player.openInventory(this.inventory).ifPresent(container -> playersViewing.add(player));
-        }).submit(this.plugin);
+        long openTime = System.nanoTime();
+        if(Sponge.getServer().isMainThread() && handlingEvents == 0) show(player, openTime);
+        else Task.builder().execute(() -> show(player, openTime)).submit(this.plugin);
+    }
+
+    private void show(Player player, long openTime) {
+        watchItems();
+        updateRequiredSlots();
+
+        // Show the menu already filled
+        slotWriter.flush();
+
+        player.closeInventory();
+        if(player.openInventory(this.inventory).isPresent()) {
+            playersViewing.add(player);
+            getOnOpenLatency().accept(System.nanoTime() - openTime);
+        } else unwatchItems();
+    }
+
+    /**
+     * Open this menu for a player while its contents
+     * are loaded. The menu is opened right away with the
+     * items it already has, and the result of the future
+     * is applied to it in the main thread once completed.
+     *
+     * If the player closes the menu, or opens another
+     * one, before the contents are loaded, the future
+     * is cancelled and its result is not applied.
+     *
+     * @param player the desired player.
+     * @param contents the future that loads the contents,
+     *                 returning the action that adds them
+     *                 to the menu.
+     */
+    public void openAsync(Player player, CompletableFuture<? extends Consumer<ChestMenu>> contents) {
+        UUID viewer = player.getUniqueId();
+        CompletableFuture<? extends Consumer<ChestMenu>> previous = pendingContents.put(viewer, contents);
+        if(previous != null) previous.cancel(false);
+
+        open(player);
+        contents.whenComplete((apply, error) -> Task.builder().execute(() -> {
+            if(pendingContents.remove(viewer, contents) && error == null && apply != null) apply.accept(this);
+        }).submit(this.plugin));
+    }
+
+    /**
+     * Apply multiple changes to this menu at once.
+     * The slots changed by the edit are only updated
+     * after it ends, for this menu and all of its copies
+     * being viewed.
+     *
+     * This method must be called from the main thread,
+     * use ChestMenu#queueEdit from other threads.
+     *
+     * @param edit the edit to apply.
+     * @return this menu.
+     */
+    public ChestMenu edit(Consumer<ChestMenu> edit) {
+        beginEdit();
+        try {
+            edit.accept(this);
+        } finally {
+            endEdit();
+        }
+        return this;
+    }
+
+    protected void beginEdit() {
+        editDepth++;
+    }
+
+    protected void endEdit() {
+        if(--editDepth == 0) handleEditEnd();
+    }
+
+    protected boolean isEditing() {
+        return editDepth > 0;
+    }
+
+    /**
+     * Called when the outermost edit of this
+     * menu ends, updating the slots changed by it.
+     */
+    protected void handleEditEnd() {
+        if(this.inventory != null && hasViewers()) updateRequiredSlots();
+    }
+
+    /**
+     * Updates all slots marked as required update.
+     */
+    protected void updateRequiredSlots() {
+        if(requiresFullUpdate) updateSlots(false);
+        else for(long slots = slotsRequiringUpdate; slots != 0; slots &= slots - 1) {
+            updateSlot(Long.numberOfTrailingZeros(slots), false);
+        }
+    }
+
+    /**
+     * Queue an edit to this menu.
+     *
+     * Unlike the other methods of this menu, this
+     * method is safe to call from any thread. The queued
+     * edits are applied together in the main thread, in
+     * the order they were queued.
+     *
+     * @param edit the edit to apply.
+     * @return this menu.
+     */
+    public ChestMenu queueEdit(Consumer<ChestMenu> edit) {
+        enqueueEdit(() -> edit.accept(this));
+        return this;
+    }
+
+    protected void enqueueEdit(Runnable edit) {
+        queuedEdits.offer(edit);
+        if(applyScheduled.compareAndSet(false, true)) Task.builder().execute(this::applyQueuedEdits).submit(this.plugin);
+    }
+
+    private void applyQueuedEdits() {
+        applyScheduled.set(false);
+        beginEdit();
+        try {
+            Runnable edit;
+            while ((edit = queuedEdits.poll()) != null) edit.run();
+        } finally {
+            endEdit();
+
+            // An edit failed, the remaining ones are applied in the next tick
+            if(!queuedEdits.isEmpty() && applyScheduled.compareAndSet(false, true)) Task.builder().execute(this::applyQueuedEdits).submit(this.plugin);
+        }
     }
 
     /**
@@ -350,6 +591,16 @@ public class ChestMenu {
         return playersViewing.size() > 0;
     }
 
+    private void updateSlotStack(int slot, boolean force) {
+        MenuItem item = getItem(slot);
+        int version = item == null ? 0 : item.getVersion();
+        if(!force && renderedItems[slot] == item && renderedVersions[slot] == version) return;
+
+        renderedItems[slot] = item;
+        renderedVersions[slot] = version;
+        slotWriter.write(slot, item == null ? null : item.getItem());
+    }
+
     /**
      * Creates a copy of this menu.
      * @return the copy of this menu.
@@ -359,6 +610,7 @@ public class ChestMenu {
 
         copy.setOnOpen(this.getOnOpen());
         copy.setOnClose(this.getOnClose());
+        copy.setOnOpenLatency(this.getOnOpenLatency());
 
         copy.setOnClick(this.getOnClick());
         copy.setOnPrimary(this.getOnPrimary());
@@ -370,29 +622,473 @@ public class ChestMenu {
         copy.setOnShiftPrimary(this.getOnShiftPrimary());
         copy.setOnShiftSecondary(this.getOnShiftSecondary());
         copy.setOnDouble(this.getOnDouble());
+        copy.getClickLimiter().copyFrom(getClickLimiter());
+        copy.setClickExecutor(this.clickExecutor);
+        for (ClickAction action : ClickAction.values()) copy.setAsyncAction(action, getAsyncAction(action));
 
         getItems().forEach((slot, item) -> copy.addItem(item.copy(), slot));
         return copy;
     }
 
-    protected void handlesUpdateItemsTask() {
-        if(getUpdateItemsTask() == null && hasViewers())
-            setUpdateItemsTask(Task.builder().intervalTicks(1).execute((task) -> {
-                handleUpdateItems();
+    public ChestMenu setOnClick(Consumer<ClickInventoryEvent> onClick) {
+        this.onClick = onClick == null ? noAction() : onClick;
+        updateActionMask(CLICK_ACTION_BIT, onClick != null && onClick != NO_ACTION);
+        return this;
+    }
+
+    public ChestMenu setOnPrimary(Consumer<ClickInventoryEvent.Primary> onPrimary) {
+        this.onPrimary = onPrimary == null ? noAction() : onPrimary;
+        updateActionMask(ClickAction.PRIMARY.getBit(), onPrimary != null && onPrimary != NO_ACTION);
+        return this;
+    }
+
+    public ChestMenu setOnMiddle(Consumer<ClickInventoryEvent.Middle> onMiddle) {
+        this.onMiddle = onMiddle == null ? noAction() : onMiddle;
+        updateActionMask(ClickAction.MIDDLE.getBit(), onMiddle != null && onMiddle != NO_ACTION);
+        return this;
+    }
+
+    public ChestMenu setOnSecondary(Consumer<ClickInventoryEvent.Secondary> onSecondary) {
+        this.onSecondary = onSecondary == null ? noAction() : onSecondary;
+        updateActionMask(ClickAction.SECONDARY.getBit(), onSecondary != null && onSecondary != NO_ACTION);
+        return this;
+    }
+
+    public ChestMenu setOnShiftPrimary(Consumer<ClickInventoryEvent.Shift.Primary> onShiftPrimary) {
+        this.onShiftPrimary = onShiftPrimary == null ? noAction() : onShiftPrimary;
+        updateActionMask(ClickAction.SHIFT_PRIMARY.getBit(), onShiftPrimary != null && onShiftPrimary != NO_ACTION);
+        return this;
+    }
+
+    public ChestMenu setOnDouble(Consumer<ClickInventoryEvent.Double> onDouble) {
+        this.onDouble = onDouble == null ? noAction() : onDouble;
+        updateActionMask(ClickAction.DOUBLE.getBit(), onDouble != null && onDouble != NO_ACTION);
+        return this;
+    }
+
+    public ChestMenu setOnDrop(Consumer<ClickInventoryEvent.Drop.Single> onDrop) {
+        this.onDrop = onDrop == null ? noAction() : onDrop;
+        updateActionMask(ClickAction.DROP.getBit(), onDrop != null && onDrop != NO_ACTION);
+        return this;
+    }
+
+    public ChestMenu setOnShiftSecondary(Consumer<ClickInventoryEvent.Shift.Secondary> onShiftSecondary) {
+        this.onShiftSecondary = onShiftSecondary == null ? noAction() : onShiftSecondary;
+        updateActionMask(ClickAction.SHIFT_SECONDARY.getBit(), onShiftSecondary != null && onShiftSecondary != NO_ACTION);
+        return this;
+    }
+
+    public ChestMenu setOnDropAll(Consumer<ClickInventoryEvent.Drop.Full> onDropAll) {
+        this.onDropAll = onDropAll == null ? noAction() : onDropAll;
+        updateActionMask(ClickAction.DROP_ALL.getBit(), onDropAll != null && onDropAll != NO_ACTION);
+        return this;
+    }
+
+    public ChestMenu setOnNumber(Consumer<ClickInventoryEvent.NumberPress> onNumber) {
+        this.onNumber = onNumber == null ? noAction() : onNumber;
+        updateActionMask(ClickAction.NUMBER.getBit(), onNumber != null && onNumber != NO_ACTION);
+        return this;
+    }
+
+    /**
+     * Set an action to be performed every time this
+     * menu is shown to a player, receiving the time
+     * from the call to open until the menu was shown,
+     * in nanoseconds.
+     *
+     * @param onOpenLatency the action to perform.
+     * @return this menu.
+     */
+    public ChestMenu setOnOpenLatency(LongConsumer onOpenLatency) {
+        this.onOpenLatency = onOpenLatency == null ? (nanos) -> {} : onOpenLatency;
+        return this;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Consumer<T> noAction() {
+        return (Consumer<T>) NO_ACTION;
+    }
+
+    private void updateActionMask(int bit, boolean set) {
+        this.actionMask = set ? this.actionMask | bit : this.actionMask & ~bit;
+    }
+
+    /**
+     * Performs the actions of this menu and of
+     * the item in the slot for a click. Only the
+     * actions that were set are performed, and
+     * nothing is performed for clicks over the
+     * click limit of the player.
+     *
+     * @param ce the click event.
+     * @param slot the clicked slot.
+     */
+    protected void handleClick(ClickInventoryEvent ce, int slot) {
+        UUID viewer = ce.getCause().first(Player.class).map(Player::getUniqueId).orElse(null);
+        if(viewer != null && !getClickLimiter().tryClick(viewer, isDebounced(slot))) return;
+
+        int menuActions = getActionMask();
+        if((menuActions & CLICK_ACTION_BIT) != 0) getOnClick().accept(ce);
+
+        ClickAction action = CLICK_ACTIONS.get(ce.getClass()).orElse(null);
+        if(action == null) return;
+
+        int bit = action.getBit();
+        if((menuActions & bit) != 0) getAction(action).accept(ce);
+
+        MenuItem item = getItem(slot);
+        if(item != null && (item.getActionMask() & bit) != 0) item.<ClickInventoryEvent>getAction(action).accept(ce);
+
+        if(viewer != null) runAsyncActions(viewer, slot, action, item);
+    }
+
+    private void runAsyncActions(UUID viewer, int slot, ClickAction action, MenuItem item) {
+        int bit = action.getBit();
+        AsyncClickAction menuAction = (getAsyncActionMask() & bit) != 0 ? getAsyncAction(action) : null;
+        AsyncClickAction itemAction = item != null && (item.getAsyncActionMask() & bit) != 0 ? item.getAsyncAction(action) : null;
+        if(menuAction == null && itemAction == null) return;
+
+        ClickLimiter limiter = getClickLimiter();
+        Object token = limiter.tryStartAsync(viewer);
+        if(token == null) return;
+
+        ClickSnapshot click = new ClickSnapshot(viewer, slot, action);
+        ChestMenu menu = getRootMenu();
+        Executor executor = getClickExecutor();
+        CompletableFuture.allOf(runAsyncAction(menuAction, click, menu, executor), runAsyncAction(itemAction, click, menu, executor))
+                .whenComplete((done, error) -> menu.enqueueEdit(() -> limiter.finishAsync(viewer, token)));
+    }
+
+    private CompletableFuture<Void> runAsyncAction(AsyncClickAction action, ClickSnapshot click, ChestMenu menu, Executor executor) {
+        if(action == null) return CompletableFuture.completedFuture(null);
 
-                if(!hasViewers()) {
-                    task.cancel();
-                    this.updateItemsTask = null;
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    CompletableFuture<? extends Consumer<ChestMenu>> result = action.apply(click);
+                    if(result == null) done.complete(null);
+                    else result.whenComplete((edit, error) -> {
+                        if(error != null) logAsyncFailure(error);
+                        else if(edit != null) menu.enqueueEdit(() -> edit.accept(menu));
+                        done.complete(null);
+                    });
+                } catch (Throwable error) {
+                    logAsyncFailure(error);
+                    done.completeExceptionally(error);
                 }
-            }).submit(this.plugin));
+            });
+        } catch (RuntimeException error) {
+            logAsyncFailure(error);
+            done.completeExceptionally(error);
+        }
+        return done;
+    }
+
+    private void logAsyncFailure(Throwable error) {
+        if(!(error instanceof CancellationException)) Sponge.getPluginManager().fromInstance(this.plugin)
+                .ifPresent(container -> container.getLogger().error("An asynchronous click action of the menu " + this.title + " failed.", error));
+    }
+
+    /**
+     * Limits how fast each player can click this
+     * menu. Clicks over the limit are cancelled
+     * without performing any action.
+     *
+     * A player can click up to the given amount
+     * of times in a row, and then once for each
+     * millis / clicks milliseconds. Use a limit
+     * of 1 click to only set a minimum interval
+     * between clicks.
+     *
+     * @param clicks the amount of clicks allowed
+     *               in the period, or 0 to
+     *               remove the limit.
+     * @param millis the period, in milliseconds.
+     * @return this menu.
+     */
+    public ChestMenu setClickLimit(int clicks, long millis) {
+        getClickLimiter().setLimit(clicks, millis);
+        return this;
+    }
+
+    /**
+     * Returns the amount of clicks dropped
+     * by the click limit of this menu.
+     *
+     * @return the amount of dropped clicks.
+     */
+    public long getDroppedClicks() {
+        return getClickLimiter().getDroppedClicks();
+    }
+
+    ClickLimiter getClickLimiter() {
+        return clickLimiter;
+    }
+
+    /**
+     * Set an action to be performed outside of the
+     * main thread for a kind of click on this menu.
+     *
+     * The action receives a snapshot of the click, and
+     * the edit it returns is applied to this menu in
+     * the main thread, together with the other edits
+     * completed in the same tick. Until it completes,
+     * or the player closes the menu, further clicks of
+     * the same player with asynchronous actions
+     * are dropped.
+     *
+     * @param action the kind of click.
+     * @param asyncAction the action to perform, or
+     *                    null to remove it.
+     * @return this menu.
+     */
+    public ChestMenu setAsyncAction(ClickAction action, AsyncClickAction asyncAction) {
+        asyncActions[action.ordinal()] = asyncAction;
+        asyncActionMask = asyncAction == null ? asyncActionMask & ~action.getBit() : asyncActionMask | action.getBit();
+        return this;
+    }
+
+    /**
+     * Returns the action of this menu performed
+     * outside of the main thread for a kind of click.
+     *
+     * @param action the kind of click.
+     * @return the action, or null if it was not set.
+     */
+    public AsyncClickAction getAsyncAction(ClickAction action) {
+        return asyncActions[action.ordinal()];
+    }
+
+    protected int getAsyncActionMask() {
+        return asyncActionMask;
+    }
+
+    /**
+     * Set the executor used to perform the
+     * asynchronous click actions of this menu
+     * and of its items.
+     *
+     * @param clickExecutor the executor, or null
+     *                      to use the asynchronous scheduler of Sponge.
+     * @return this menu.
+     */
+    public ChestMenu setClickExecutor(Executor clickExecutor) {
+        this.clickExecutor = clickExecutor;
+        return this;
+    }
+
+    /**
+     * Returns the executor used to perform
+     * the asynchronous click actions.
+     *
+     * @return the executor.
+     */
+    public Executor getClickExecutor() {
+        return clickExecutor != null ? clickExecutor : task -> Task.builder().async().execute(task).submit(this.plugin);
+    }
+
+    /**
+     * Returns the menu the actions of this
+     * menu belong to, where the edits of the
+     * asynchronous actions are applied.
+     *
+     * @return the menu.
+     */
+    protected ChestMenu getRootMenu() {
+        return this;
+    }
+
+    /**
+     * Returns if the clicks in a slot are
+     * debounced by the click limit.
+     *
+     * @param slot the clicked slot.
+     * @return true if the clicks are debounced.
+     */
+    protected boolean isDebounced(int slot) {
+        return false;
+    }
+
+    /**
+     * Returns the mask of the kinds of
+     * clicks this menu has actions for.
+     *
+     * @return the mask, with the bit of each
+     * ClickAction set.
+     */
+    protected int getActionMask() {
+        return actionMask;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> Consumer<T> getAction(ClickAction action) {
+        switch (action) {
+            case PRIMARY: return (Consumer<T>) getOnPrimary();
+            case MIDDLE: return (Consumer<T>) getOnMiddle();
+            case SECONDARY: return (Consumer<T>) getOnSecondary();
+            case SHIFT_PRIMARY: return (Consumer<T>) getOnShiftPrimary();
+            case DOUBLE: return (Consumer<T>) getOnDouble();
+            case DROP: return (Consumer<T>) getOnDrop();
+            case SHIFT_SECONDARY: return (Consumer<T>) getOnShiftSecondary();
+            case DROP_ALL: return (Consumer<T>) getOnDropAll();
+            case NUMBER: return (Consumer<T>) getOnNumber();
+            default: throw new IllegalArgumentException("Unknown click action: " + action);
+        }
+    }
+
+    protected void startTicking() {
+        SealMenus.getTicker(this.plugin).add(this);
+    }
+
+    protected void stopTicking() {
+        if(!hasViewers()) SealMenus.getTicker(this.plugin).remove(this);
+    }
+
+    /**
+     * Called after a player closes this menu.
+     *
+     * @param viewer the unique id of the player.
+     */
+    protected void handleClose(UUID viewer) {
+        if(!isViewing(viewer)) {
+            CompletableFuture<?> contents = pendingContents.remove(viewer);
+            if(contents != null) contents.cancel(false);
+            getClickLimiter().remove(viewer);
+        }
+
+        stopTicking();
+        unwatchItems();
+    }
+
+    /**
+     * Returns if a player is viewing this menu.
+     *
+     * @param viewer the unique id of the player.
+     * @return true if the player is using
+     * this menu.
+     */
+    protected boolean isViewing(UUID viewer) {
+        return playersViewing.stream().anyMatch(player -> player.getUniqueId().equals(viewer));
     }
 
     protected void handleUpdateItems() {
-        getItems().forEach((slot, item) -> {
-            if(item.update()) {
-                requireUpdate(slot);
-            }
-        });
+        for(long slots = tickingSlots; slots != 0; slots &= slots - 1) {
+            int slot = Long.numberOfTrailingZeros(slots);
+            MenuItem item = items.get(slot);
+            if(item != null && item.update()) requireUpdate(slot, true);
+        }
+    }
+
+    /**
+     * Called when an item of this menu
+     * changes the ItemStack it displays.
+     *
+     * @param item the changed item.
+     */
+    protected void onItemChange(MenuItem item) {
+        for(int slot = 0; slot < items.length(); slot++) {
+            if(items.get(slot) == item) requireUpdate(slot, false);
+        }
+    }
+
+    /**
+     * Returns if the item is still
+     * present in this menu.
+     *
+     * @param item the item to check.
+     * @return true if the menu contains the item.
+     */
+    protected boolean holdsItem(MenuItem item) {
+        for(int slot = 0; slot < items.length(); slot++) {
+            if(items.get(slot) == item) return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Start watching an item added to this
+     * menu, if the menu is being viewed.
+     *
+     * @param item the added item.
+     */
+    protected void holdItem(MenuItem item) {
+        if(watchingItems) item.watch(this.itemWatcher);
+    }
+
+    /**
+     * Stop watching an item that was removed
+     * from this menu, if it is not present in
+     * any other slot.
+     *
+     * @param item the removed item.
+     */
+    protected void releaseItem(MenuItem item) {
+        if(watchingItems && !holdsItem(item)) item.unwatch(this.itemWatcher);
+    }
+
+    /**
+     * Start watching the items of this menu when
+     * it is shown. The items may have changed while
+     * they were not watched, so every slot is
+     * checked again.
+     */
+    protected void watchItems() {
+        if(watchingItems) return;
+
+        watchingItems = true;
+        forEachItem(item -> item.watch(this.itemWatcher));
+        requireUpdate(null, false);
+    }
+
+    /**
+     * Stop watching the items of this menu
+     * once nobody is viewing it.
+     */
+    protected void unwatchItems() {
+        if(!watchingItems || hasViewers()) return;
+
+        watchingItems = false;
+        forEachItem(item -> item.unwatch(this.itemWatcher));
+    }
+
+    /**
+     * Performs an action for each item
+     * held by this menu.
+     *
+     * @param action the action to perform.
+     */
+    protected void forEachItem(Consumer<MenuItem> action) {
+        for(int slot = 0; slot < items.length(); slot++) {
+            MenuItem item = items.get(slot);
+            if(item != null) action.accept(item);
+        }
+    }
+
+    private void removeAllItems() {
+        MenuItem[] oldItems = new MenuItem[items.length()];
+        for(int slot = 0; slot < items.length(); slot++) {
+            oldItems[slot] = items.getAndSet(slot, null);
+        }
+        tickingSlots = 0;
+
+        for (MenuItem oldItem : oldItems) {
+            if(oldItem != null) releaseItem(oldItem);
+        }
+    }
+
+    /**
+     * Track the inventory events of every inventory with
+     * listeners of a plugin, as the listeners of other
+     * plugins may open menus too. Clicks are inventory
+     * interactions as well. Each plugin counts the events
+     * once on enter and once on exit, so the depth
+     * stays balanced.
+     */
+    static void trackEvents(Object plugin) {
+        Sponge.getEventManager().registerListener(plugin, InteractInventoryEvent.class, Order.PRE, ie -> handlingEvents++);
+        Sponge.getEventManager().registerListener(plugin, InteractInventoryEvent.class, Order.POST, ie -> handlingEvents--);
     }
 
 }
\ No newline at end of file
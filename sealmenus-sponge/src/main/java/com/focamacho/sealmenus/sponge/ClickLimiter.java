@@ -0,0 +1,131 @@
+package com.focamacho.sealmenus.sponge;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how fast each player can click a menu.
+ *
+ * The limit works like a token bucket, allowing
+ * a burst of clicks and then one click for each
+ * interval. Debounced clicks, like the ones on the
+ * page buttons, are also dropped if the previous
+ * debounced click was too recent.
+ *
+ * It also tracks the players with asynchronous
+ * click actions running, so they can't be started
+ * again until the previous ones complete or the
+ * player stops viewing the menu.
+ *
+ * Must only be used from the main thread, except
+ * for reading the amount of dropped clicks.
+ */
+final class ClickLimiter {
+
+    // Time between clicks and the amount of time a player
+    // can be ahead of it, in nanoseconds. 0 means no limit.
+    private long interval = 0;
+    private long tolerance = 0;
+    private long debounce = 0;
+
+    // Time of the next allowed click and of the last
+    // debounced click of each player
+    private final Map<UUID, long[]> viewers = new HashMap<>();
+    private final Map<UUID, Object> runningClicks = new HashMap<>();
+    private final AtomicLong droppedClicks = new AtomicLong();
+
+    void setLimit(int clicks, long millis) {
+        if(clicks < 0 || millis < 0) throw new IllegalArgumentException("The click limit can't be negative.");
+
+        if(clicks == 0 || millis == 0) {
+            this.interval = 0;
+            this.tolerance = 0;
+        } else {
+            this.interval = Math.max(1, TimeUnit.MILLISECONDS.toNanos(millis) / clicks);
+            this.tolerance = this.interval * (clicks - 1);
+        }
+    }
+
+    void setDebounce(long millis) {
+        if(millis < 0) throw new IllegalArgumentException("The debounce time can't be negative.");
+        this.debounce = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    long getDebounce() {
+        return TimeUnit.NANOSECONDS.toMillis(debounce);
+    }
+
+    void copyFrom(ClickLimiter other) {
+        this.interval = other.interval;
+        this.tolerance = other.tolerance;
+        this.debounce = other.debounce;
+    }
+
+    /**
+     * Checks if a click of a player is allowed,
+     * counting it as dropped otherwise.
+     *
+     * @param viewer the unique id of the player.
+     * @param debounced if the click should also
+     *                  be debounced.
+     * @return true if the click can be handled.
+     */
+    boolean tryClick(UUID viewer, boolean debounced) {
+        debounced &= debounce > 0;
+        if(interval == 0 && !debounced) return true;
+
+        long now = System.nanoTime();
+        long[] state = viewers.computeIfAbsent(viewer, id -> new long[] { now, Long.MIN_VALUE });
+
+        if(debounced && state[1] != Long.MIN_VALUE && now - state[1] < debounce) {
+            droppedClicks.incrementAndGet();
+            return false;
+        }
+
+        if(interval > 0) {
+            long next = now - state[0] > 0 ? now : state[0];
+            if(next - now > tolerance) {
+                droppedClicks.incrementAndGet();
+                return false;
+            }
+            state[0] = next + interval;
+        }
+
+        if(debounced) state[1] = now;
+        return true;
+    }
+
+    /**
+     * Marks the asynchronous actions of a player
+     * as running, counting the click as dropped
+     * if they were already running.
+     *
+     * @param viewer the unique id of the player.
+     * @return the token to finish the actions
+     * with, or null if they can't be started.
+     */
+    Object tryStartAsync(UUID viewer) {
+        Object token = new Object();
+        if(runningClicks.putIfAbsent(viewer, token) == null) return token;
+
+        droppedClicks.incrementAndGet();
+        return null;
+    }
+
+    void finishAsync(UUID viewer, Object token) {
+        runningClicks.remove(viewer, token);
+    }
+
+    void remove(UUID viewer) {
+        viewers.remove(viewer);
+        runningClicks.remove(viewer);
+    }
+
+    long getDroppedClicks() {
+        return droppedClicks.get();
+    }
+
+}
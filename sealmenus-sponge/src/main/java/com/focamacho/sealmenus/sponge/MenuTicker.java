@@ -0,0 +1,42 @@
+package com.focamacho.sealmenus.sponge;
+
+import com.google.common.collect.Sets;
+import lombok.RequiredArgsConstructor;
+import org.spongepowered.api.scheduler.Task;
+
+import java.util.Set;
+
+/**
+ * Ticks the items of every menu of a plugin
+ * that is being viewed, using a single task.
+ *
+ * Menus join when opened and leave when the
+ * last viewer closes them, and the task only
+ * runs while at least one menu is active.
+ */
+@RequiredArgsConstructor
+final class MenuTicker {
+
+    private final Object plugin;
+    private final Set<ChestMenu> activeMenus = Sets.newConcurrentHashSet();
+    private Task task = null;
+
+    void add(ChestMenu menu) {
+        if(activeMenus.add(menu) && task == null)
+            task = Task.builder().intervalTicks(1).execute(this::tick).submit(this.plugin);
+    }
+
+    void remove(ChestMenu menu) {
+        if(activeMenus.remove(menu) && activeMenus.isEmpty() && task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+
+    private void tick() {
+        for (ChestMenu menu : activeMenus) {
+            menu.handleUpdateItems();
+        }
+    }
+
+}
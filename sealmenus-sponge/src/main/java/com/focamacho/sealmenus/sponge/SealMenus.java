@@ -1,7 +1,16 @@
 package com.focamacho.sealmenus.sponge;
 
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.util.Map;
+import java.util.Set;
+
 public class SealMenus {
 
+    static final Set<Object> trackingPlugins = Sets.newHashSet();
+    static final Map<Object, MenuTicker> registeredTickers = Maps.newHashMap();
+
     /**
      * Creates a chest menu.
      * @param title the inventory title.
@@ -13,6 +22,7 @@ public class SealMenus {
      * @return the created ChestMenu.
      */
     public static ChestMenu createChestMenu(String title, int rows, Object plugin) {
+        trackEvents(plugin);
         return new ChestMenu(title, rows, plugin);
     }
 
@@ -30,7 +40,16 @@ public class SealMenus {
      * @return the created ChestMenu.
      */
     public static PageableChestMenu createPageableChestMenu(String title, int rows, int[] itemSlots, Object plugin) {
+        trackEvents(plugin);
         return new PageableChestMenu(title, rows, itemSlots, plugin);
     }
 
+    static MenuTicker getTicker(Object plugin) {
+        return registeredTickers.computeIfAbsent(plugin, MenuTicker::new);
+    }
+
+    private static void trackEvents(Object plugin) {
+        if(trackingPlugins.add(plugin)) ChestMenu.trackEvents(plugin);
+    }
+
 }
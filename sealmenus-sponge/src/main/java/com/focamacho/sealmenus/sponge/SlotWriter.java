@@ -0,0 +1,75 @@
+package com.focamacho.sealmenus.sponge;
+
+import org.spongepowered.api.item.inventory.Inventory;
+import org.spongepowered.api.item.inventory.ItemStack;
+import org.spongepowered.api.item.inventory.property.SlotIndex;
+import org.spongepowered.api.scheduler.Task;
+
+/**
+ * Collects the changes made to the slots
+ * of an inventory and applies all of them
+ * in a single task on the main thread.
+ *
+ * Multiple writes to the same slot before
+ * the flush only keep the last ItemStack.
+ */
+final class SlotWriter {
+
+    private final Object plugin;
+    private final Inventory[] slots;
+
+    private final ItemStack[] pendingStacks;
+    private long pendingSlots = 0;
+    private boolean flushScheduled = false;
+
+    SlotWriter(Object plugin, Inventory inventory, int size) {
+        this.plugin = plugin;
+        this.slots = new Inventory[size];
+        this.pendingStacks = new ItemStack[size];
+
+        for (Inventory slot : inventory.slots()) {
+            Integer slotIndex = slot.getInventoryProperty(SlotIndex.class).get().getValue();
+            if(slotIndex != null && slotIndex < size) this.slots[slotIndex] = slot;
+        }
+    }
+
+    /**
+     * Queue a change for a slot.
+     *
+     * @param slot the slot to change.
+     * @param stack the ItemStack to display, or
+     *              null to clear the slot.
+     */
+    synchronized void write(int slot, ItemStack stack) {
+        pendingStacks[slot] = stack;
+        pendingSlots |= 1L << slot;
+
+        if(!flushScheduled) {
+            flushScheduled = true;
+            Task.builder().execute(this::flush).submit(this.plugin);
+        }
+    }
+
+    /**
+     * Apply all queued changes to the inventory.
+     * Must be called from the main thread.
+     */
+    synchronized void flush() {
+        flushScheduled = false;
+
+        for(long pending = pendingSlots; pending != 0; pending &= pending - 1) {
+            int slot = Long.numberOfTrailingZeros(pending);
+            ItemStack stack = pendingStacks[slot];
+            pendingStacks[slot] = null;
+
+            Inventory inventorySlot = slots[slot];
+            if(inventorySlot == null) continue;
+
+            if(stack != null) inventorySlot.set(stack);
+            else if(inventorySlot.peek().isPresent()) inventorySlot.clear();
+        }
+
+        pendingSlots = 0;
+    }
+
+}
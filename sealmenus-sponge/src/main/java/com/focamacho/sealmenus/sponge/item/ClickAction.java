@@ -0,0 +1,29 @@
+package com.focamacho.sealmenus.sponge.item;
+
+/**
+ * The kinds of clicks that can
+ * perform an action in a menu.
+ */
+public enum ClickAction {
+
+    PRIMARY,
+    MIDDLE,
+    SECONDARY,
+    SHIFT_PRIMARY,
+    DOUBLE,
+    DROP,
+    SHIFT_SECONDARY,
+    DROP_ALL,
+    NUMBER;
+
+    /**
+     * Returns the bit of this kind of
+     * click in a mask of actions.
+     *
+     * @return the bit of this kind of click.
+     */
+    public int getBit() {
+        return 1 << ordinal();
+    }
+
+}
@@ -0,0 +1,22 @@
+package com.focamacho.sealmenus.sponge.item;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.UUID;
+
+/**
+ * An immutable copy of the details of a click
+ * in a menu, safe to use from any thread.
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public final class ClickSnapshot {
+
+    private final UUID viewer;
+    private final int slot;
+    private final ClickAction action;
+
+}
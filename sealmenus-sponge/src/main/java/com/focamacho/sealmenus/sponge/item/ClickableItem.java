@@ -9,8 +9,6 @@ import org.spongepowered.api.item.inventory.ItemStack;
  */
 public class ClickableItem extends MenuItem {
 
-    private boolean dirty = false;
-
     /**
      * Private constructor. Use the static method ClickableItem#create.
      */
@@ -28,33 +26,14 @@ public class ClickableItem extends MenuItem {
     }
 
     @Override
-    public MenuItem setItem(@NonNull ItemStack item) {
-        this.dirty = true;
-        return super.setItem(item);
-    }
-
-    @Override
-    public boolean update() {
-        if(this.dirty) {
-            this.dirty = false;
-            return true;
-        }
-
+    public boolean isTicking() {
         return false;
     }
 
     @Override
     public MenuItem copy() {
         return create(this.getItem().copy())
-                .setOnPrimary(this.getOnPrimary())
-                .setOnMiddle(this.getOnMiddle())
-                .setOnSecondary(this.getOnSecondary())
-                .setOnShiftPrimary(this.getOnShiftPrimary())
-                .setOnDouble(this.getOnDouble())
-                .setOnDrop(this.getOnDrop())
-                .setOnNumber(this.getOnNumber())
-                .setOnShiftSecondary(this.getOnShiftSecondary())
-                .setOnDropAll(this.getOnDropAll());
+                .copyActions(this);
     }
 
 }
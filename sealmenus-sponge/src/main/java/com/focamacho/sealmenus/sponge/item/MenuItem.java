@@ -5,6 +5,7 @@ import lombok.experimental.Accessors;
 import org.spongepowered.api.event.item.inventory.ClickInventoryEvent;
 import org.spongepowered.api.item.inventory.ItemStack;
 
+import java.util.Arrays;
 import java.util.function.Consumer;
 
 /**
@@ -14,31 +15,301 @@ import java.util.function.Consumer;
 @Accessors(chain = true)
 public abstract class MenuItem {
 
-    @NonNull @Getter @Setter private ItemStack item;
+    @NonNull @Getter protected ItemStack item;
+    //Incremented every time the displayed ItemStack changes
+    @Getter protected int version = 0;
 
-    //Actions
-    @Getter @Setter protected Consumer<ClickInventoryEvent.Primary> onPrimary = (click) -> {};
-    @Getter @Setter protected Consumer<ClickInventoryEvent.Middle> onMiddle = (click) -> {};
-    @Getter @Setter protected Consumer<ClickInventoryEvent.Secondary> onSecondary = (click) -> {};
-    @Getter @Setter protected Consumer<ClickInventoryEvent.Shift.Primary> onShiftPrimary = (click) -> {};
-    @Getter @Setter protected Consumer<ClickInventoryEvent.Double> onDouble = (click) -> {};
-    @Getter @Setter protected Consumer<ClickInventoryEvent.Drop.Single> onDrop = (click) -> {};
-    @Getter @Setter protected Consumer<ClickInventoryEvent.Shift.Secondary> onShiftSecondary = (click) -> {};
-    @Getter @Setter protected Consumer<ClickInventoryEvent.Drop.Full> onDropAll = (click) -> {};
-    @Getter @Setter protected Consumer<ClickInventoryEvent.NumberPress> onNumber = (click) -> {};
+    //Menus displaying this item, notified when the item changes. Holds the
+    //only watcher, or an array that is replaced when a watcher is added or removed
+    private volatile Object watchers = null;
+
+    //Actions, indexed by ClickAction. The array is
+    //only created once the first action is set
+    private Consumer<?>[] actions = null;
+    private int actionMask = 0;
+
+    //Actions performed outside of the main thread, indexed by ClickAction
+    private AsyncClickAction[] asyncActions = null;
+    private int asyncActionMask = 0;
+
+    private static final Consumer<?> NO_ACTION = (click) -> {};
+
+    /**
+     * Set the ItemStack displayed by this item.
+     * Every menu containing this item is
+     * updated with the new ItemStack.
+     *
+     * This method can be called from any thread,
+     * the menus are updated in the main thread.
+     *
+     * @param item the ItemStack to display.
+     * @return this item.
+     */
+    public MenuItem setItem(@NonNull ItemStack item) {
+        this.item = item;
+        this.version++;
+        notifyWatchers();
+        return this;
+    }
 
     /**
      * Performs an update action.
      *
      * This action is performed one time
-     * per tick and only happens if at least
-     * one player is using the menu.
+     * per tick, only for items where
+     * isTicking() returns true, and only
+     * happens if at least one player is
+     * using the menu.
      *
      * @return if the ItemStack being displayed
      * in the menu should be updated or not.
      */
     public boolean update() { return false; }
 
+    /**
+     * Returns if this item needs to be
+     * updated every tick. Items that do not
+     * tick are only updated in the menus when
+     * they change.
+     *
+     * Override it to return false if update()
+     * is not overridden.
+     *
+     * @return true if update() should be called
+     * every tick.
+     */
+    public boolean isTicking() { return true; }
+
+    /**
+     * Register an action to be performed
+     * every time the ItemStack displayed by
+     * this item changes. This is used by the
+     * menus containing this item while they
+     * are being viewed.
+     *
+     * @param watcher the action to perform.
+     */
+    public synchronized void watch(@NonNull Consumer<MenuItem> watcher) {
+        Object watchers = this.watchers;
+        if(watchers == null) this.watchers = watcher;
+        else if(watchers instanceof Consumer<?>[]) {
+            Consumer<?>[] array = (Consumer<?>[]) watchers;
+            if(indexOf(array, watcher) != -1) return;
+
+            Consumer<?>[] grown = Arrays.copyOf(array, array.length + 1);
+            grown[array.length] = watcher;
+            this.watchers = grown;
+        } else if(!watchers.equals(watcher)) this.watchers = new Consumer<?>[] { (Consumer<?>) watchers, watcher };
+    }
+
+    /**
+     * Remove an action registered with
+     * MenuItem#watch.
+     *
+     * @param watcher the action to remove.
+     */
+    public synchronized void unwatch(Consumer<MenuItem> watcher) {
+        Object watchers = this.watchers;
+        if(watchers instanceof Consumer<?>[]) {
+            Consumer<?>[] array = (Consumer<?>[]) watchers;
+            int index = indexOf(array, watcher);
+            if(index == -1) return;
+
+            if(array.length == 2) this.watchers = array[1 - index];
+            else {
+                Consumer<?>[] shrunk = new Consumer<?>[array.length - 1];
+                System.arraycopy(array, 0, shrunk, 0, index);
+                System.arraycopy(array, index + 1, shrunk, index, shrunk.length - index);
+                this.watchers = shrunk;
+            }
+        } else if(watchers != null && watchers.equals(watcher)) this.watchers = null;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void notifyWatchers() {
+        Object watchers = this.watchers;
+        if(watchers instanceof Consumer<?>[]) {
+            for (Consumer<?> watcher : (Consumer<?>[]) watchers) ((Consumer<MenuItem>) watcher).accept(this);
+        } else if(watchers != null) ((Consumer<MenuItem>) watchers).accept(this);
+    }
+
+    private static int indexOf(Consumer<?>[] watchers, Consumer<MenuItem> watcher) {
+        for (int i = 0; i < watchers.length; i++) {
+            if(watchers[i].equals(watcher)) return i;
+        }
+        return -1;
+    }
+
+    public Consumer<ClickInventoryEvent.Primary> getOnPrimary() {
+        return getAction(ClickAction.PRIMARY);
+    }
+
+    public MenuItem setOnPrimary(Consumer<ClickInventoryEvent.Primary> onPrimary) {
+        return setAction(ClickAction.PRIMARY, onPrimary);
+    }
+
+    public Consumer<ClickInventoryEvent.Middle> getOnMiddle() {
+        return getAction(ClickAction.MIDDLE);
+    }
+
+    public MenuItem setOnMiddle(Consumer<ClickInventoryEvent.Middle> onMiddle) {
+        return setAction(ClickAction.MIDDLE, onMiddle);
+    }
+
+    public Consumer<ClickInventoryEvent.Secondary> getOnSecondary() {
+        return getAction(ClickAction.SECONDARY);
+    }
+
+    public MenuItem setOnSecondary(Consumer<ClickInventoryEvent.Secondary> onSecondary) {
+        return setAction(ClickAction.SECONDARY, onSecondary);
+    }
+
+    public Consumer<ClickInventoryEvent.Shift.Primary> getOnShiftPrimary() {
+        return getAction(ClickAction.SHIFT_PRIMARY);
+    }
+
+    public MenuItem setOnShiftPrimary(Consumer<ClickInventoryEvent.Shift.Primary> onShiftPrimary) {
+        return setAction(ClickAction.SHIFT_PRIMARY, onShiftPrimary);
+    }
+
+    public Consumer<ClickInventoryEvent.Double> getOnDouble() {
+        return getAction(ClickAction.DOUBLE);
+    }
+
+    public MenuItem setOnDouble(Consumer<ClickInventoryEvent.Double> onDouble) {
+        return setAction(ClickAction.DOUBLE, onDouble);
+    }
+
+    public Consumer<ClickInventoryEvent.Drop.Single> getOnDrop() {
+        return getAction(ClickAction.DROP);
+    }
+
+    public MenuItem setOnDrop(Consumer<ClickInventoryEvent.Drop.Single> onDrop) {
+        return setAction(ClickAction.DROP, onDrop);
+    }
+
+    public Consumer<ClickInventoryEvent.Shift.Secondary> getOnShiftSecondary() {
+        return getAction(ClickAction.SHIFT_SECONDARY);
+    }
+
+    public MenuItem setOnShiftSecondary(Consumer<ClickInventoryEvent.Shift.Secondary> onShiftSecondary) {
+        return setAction(ClickAction.SHIFT_SECONDARY, onShiftSecondary);
+    }
+
+    public Consumer<ClickInventoryEvent.Drop.Full> getOnDropAll() {
+        return getAction(ClickAction.DROP_ALL);
+    }
+
+    public MenuItem setOnDropAll(Consumer<ClickInventoryEvent.Drop.Full> onDropAll) {
+        return setAction(ClickAction.DROP_ALL, onDropAll);
+    }
+
+    public Consumer<ClickInventoryEvent.NumberPress> getOnNumber() {
+        return getAction(ClickAction.NUMBER);
+    }
+
+    public MenuItem setOnNumber(Consumer<ClickInventoryEvent.NumberPress> onNumber) {
+        return setAction(ClickAction.NUMBER, onNumber);
+    }
+
+    /**
+     * Copy the actions of another item
+     * to this item.
+     *
+     * @param item the item to copy the actions from.
+     * @return this item.
+     */
+    protected MenuItem copyActions(MenuItem item) {
+        this.actions = item.actions == null ? null : item.actions.clone();
+        this.actionMask = item.actionMask;
+        this.asyncActions = item.asyncActions == null ? null : item.asyncActions.clone();
+        this.asyncActionMask = item.asyncActionMask;
+        return this;
+    }
+
+    /**
+     * Returns the mask of the kinds of
+     * clicks this item has actions for.
+     *
+     * @return the mask, with the bit of
+     * each ClickAction set.
+     */
+    public int getActionMask() {
+        return actionMask;
+    }
+
+    /**
+     * Returns the action of this item for
+     * a kind of click.
+     *
+     * @param action the kind of click.
+     * @return the action, doing nothing
+     * if it was not set.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Consumer<T> getAction(ClickAction action) {
+        if(actions == null || actions[action.ordinal()] == null) return (Consumer<T>) NO_ACTION;
+        return (Consumer<T>) actions[action.ordinal()];
+    }
+
+    /**
+     * Set an action to be performed outside of the
+     * main thread for a kind of click on this item.
+     *
+     * While it runs, further clicks of the same player
+     * with asynchronous actions are dropped.
+     *
+     * @param action the kind of click.
+     * @param asyncAction the action to perform, or
+     *                    null to remove it.
+     * @return this item.
+     */
+    public MenuItem setAsyncAction(@NonNull ClickAction action, AsyncClickAction asyncAction) {
+        if(asyncAction == null) {
+            if(asyncActions != null) asyncActions[action.ordinal()] = null;
+            asyncActionMask &= ~action.getBit();
+        } else {
+            if(asyncActions == null) asyncActions = new AsyncClickAction[ClickAction.values().length];
+            asyncActions[action.ordinal()] = asyncAction;
+            asyncActionMask |= action.getBit();
+        }
+        return this;
+    }
+
+    /**
+     * Returns the action of this item performed
+     * outside of the main thread for a kind of click.
+     *
+     * @param action the kind of click.
+     * @return the action, or null if it was not set.
+     */
+    public AsyncClickAction getAsyncAction(ClickAction action) {
+        return asyncActions == null ? null : asyncActions[action.ordinal()];
+    }
+
+    /**
+     * Returns the mask of the kinds of clicks
+     * this item has asynchronous actions for.
+     *
+     * @return the mask, with the bit of
+     * each ClickAction set.
+     */
+    public int getAsyncActionMask() {
+        return asyncActionMask;
+    }
+
+    private MenuItem setAction(ClickAction action, Consumer<?> consumer) {
+        if(consumer == null || consumer == NO_ACTION) {
+            if(actions != null) actions[action.ordinal()] = null;
+            actionMask &= ~action.getBit();
+        } else {
+            if(actions == null) actions = new Consumer<?>[ClickAction.values().length];
+            actions[action.ordinal()] = consumer;
+            actionMask |= action.getBit();
+        }
+        return this;
+    }
+
     public abstract MenuItem copy();
 
 }